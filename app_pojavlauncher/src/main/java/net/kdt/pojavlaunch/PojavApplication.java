@@ -18,6 +18,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import net.kdt.pojavlaunch.downloader.BandwidthManager;
 import net.kdt.pojavlaunch.lifecycle.ContextExecutor;
 import net.kdt.pojavlaunch.tasks.AsyncAssetManager;
 import net.kdt.pojavlaunch.utils.*;
@@ -60,6 +61,7 @@ public class PojavApplication extends Application {
 			
 			Tools.DIR_DATA = getDir("files", MODE_PRIVATE).getParent();
 			Tools.DIR_CACHE = getCacheDir();
+			BandwidthManager.getInstance().init(this);
 			Tools.DIR_ACCOUNT_NEW = Tools.DIR_DATA + "/accounts";
 			Tools.DEVICE_ARCHITECTURE = Architecture.getDeviceArchitecture();
 			//Force x86 lib directory for Asus x86 based zenfones
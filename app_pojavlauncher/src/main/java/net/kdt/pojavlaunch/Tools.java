@@ -450,7 +450,7 @@ public final class Tools {
             finalClasspath.append(getClientClasspath(actualname));
         }
         for (String jarFile : classpath) {
-            if (!FileUtils.exists(jarFile)) {
+            if (!FileUtils.existsCached(jarFile)) {
                 Log.d(APP_NAME, "Ignored non-exists file: " + jarFile);
                 continue;
             }
@@ -0,0 +1,169 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
+
+import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Shares the download bandwidth between the different kinds of downloads. Every response body is
+ * read through a stream that asks the manager for permission before handing out the bytes.
+ * <p>
+ * When a speed limit is set (always, or only on metered networks), the bytes are handed out from
+ * a token bucket, and a download only gets tokens when no download of a higher priority is
+ * waiting for them. Without a limit, reads are never delayed and don't take any lock.
+ */
+public class BandwidthManager {
+    /** Metadata that the user is waiting for, like version lists and search results. */
+    public static final int PRIORITY_METADATA = 0;
+    /** Images shown in the user interface. */
+    public static final int PRIORITY_THUMBNAIL = 1;
+    /** Files of a game or modpack installation. */
+    public static final int PRIORITY_INSTALL = 2;
+    /** Anything that isn't needed right now. */
+    public static final int PRIORITY_BACKGROUND = 3;
+    private static final int PRIORITY_COUNT = 4;
+
+    // The longest delay for a read while higher priority downloads are waiting, to not starve the connection
+    private static final long MAX_YIELD_MS = 50;
+    private static final long BURST_MS = 250;
+    private static final long METERED_BACKGROUND_LIMIT = 64 * 1024;
+    private static final long METERED_CHECK_INTERVAL_MS = 5000;
+    private static BandwidthManager sInstance;
+
+    private final int[] mWaitingReads = new int[PRIORITY_COUNT];
+    private volatile ConnectivityManager mConnectivityManager;
+    private volatile boolean mMetered;
+    private volatile long mLastMeteredCheck;
+    private double mTokens;
+    private long mLastRefill = -1;
+
+    public static synchronized BandwidthManager getInstance() {
+        if(sInstance == null) sInstance = new BandwidthManager();
+        return sInstance;
+    }
+
+    /**
+     * Allow the manager to check whether the current network is metered.
+     * @param context any context
+     */
+    public void init(Context context) {
+        mConnectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Wrap a response body stream so that reads from it follow the bandwidth rules.
+     * @param inputStream the response body stream
+     * @param priority the PRIORITY_ class of the download
+     * @return the wrapped stream
+     */
+    public InputStream throttle(InputStream inputStream, int priority) {
+        return new ThrottledInputStream(inputStream, priority);
+    }
+
+    /**
+     * @return whether the active network is metered, as of the last check
+     */
+    public boolean isMetered() {
+        ConnectivityManager connectivityManager = mConnectivityManager;
+        long currentTime = SystemClock.elapsedRealtime();
+        if(connectivityManager != null && currentTime - mLastMeteredCheck > METERED_CHECK_INTERVAL_MS) {
+            // Several threads may check at the same time, which is harmless
+            mLastMeteredCheck = currentTime;
+            mMetered = connectivityManager.isActiveNetworkMetered();
+        }
+        return mMetered;
+    }
+
+    /**
+     * Wait until the specified priority may use the bytes it just read.
+     * @param priority the PRIORITY_ class of the download
+     * @param bytes the amount of bytes
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    void acquire(int priority, int bytes) throws InterruptedIOException {
+        long limit = getLimit(priority);
+        if(limit <= 0) return;
+        try {
+            synchronized (this) {
+                acquireTokens(priority, bytes, limit);
+            }
+        }catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    private long getLimit(int priority) {
+        long limit = (long) LauncherPreferences.PREF_DOWNLOAD_SPEED_LIMIT * 1024L * 1024L;
+        boolean metered = isMetered();
+        if(LauncherPreferences.PREF_LIMIT_ONLY_ON_METERED && !metered) limit = 0;
+        if(metered && priority == PRIORITY_BACKGROUND) {
+            limit = limit > 0 ? Math.min(limit, METERED_BACKGROUND_LIMIT) : METERED_BACKGROUND_LIMIT;
+        }
+        return limit;
+    }
+
+    private void acquireTokens(int priority, int bytes, long limit) throws InterruptedException {
+        mWaitingReads[priority]++;
+        try {
+            while(true) {
+                refillTokens(limit);
+                // Tokens may go below zero, so that reads larger than the bucket still go through
+                if(mTokens >= 0 && !isHigherPriorityWaiting(priority)) {
+                    mTokens -= bytes;
+                    return;
+                }
+                long waitTime = mTokens >= 0 ? MAX_YIELD_MS : (long) Math.ceil(-mTokens * 1000d / limit);
+                wait(Math.max(1, Math.min(waitTime, BURST_MS)));
+            }
+        }finally {
+            mWaitingReads[priority]--;
+            notifyAll();
+        }
+    }
+
+    private void refillTokens(long limit) {
+        long currentTime = SystemClock.elapsedRealtime();
+        double burstSize = limit * BURST_MS / 1000d;
+        if(mLastRefill == -1) mTokens = burstSize;
+        else mTokens = Math.min(burstSize, mTokens + (currentTime - mLastRefill) * limit / 1000d);
+        mLastRefill = currentTime;
+    }
+
+    private boolean isHigherPriorityWaiting(int priority) {
+        for(int i = 0; i < priority; i++) {
+            if(mWaitingReads[i] > 0) return true;
+        }
+        return false;
+    }
+
+    private class ThrottledInputStream extends FilterInputStream {
+        private final int mPriority;
+
+        ThrottledInputStream(InputStream in, int priority) {
+            super(in);
+            this.mPriority = priority;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = in.read();
+            if(value != -1) acquire(mPriority, 1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int length = in.read(b, off, len);
+            if(length > 0) acquire(mPriority, length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.utils.DownloadUtils;
+import net.kdt.pojavlaunch.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A store of downloaded files keyed by their hash, shared by all instances. Files are added to it
+ * as hard links, so a file that is used in several places (for example a popular mod in several
+ * modpack instances) only takes up space once, and is only downloaded once.
+ * <p>
+ * A blob is no longer used when it is only linked from the store itself; such blobs are removed
+ * by prune().
+ */
+public class BlobStore {
+    private static final long PRUNE_INTERVAL_MS = 24 * 60 * 60 * 1000;
+    private static BlobStore sInstance;
+
+    private final File mStoreDirectory;
+    private volatile boolean mLinksUnsupported;
+
+    private BlobStore(File storeDirectory) {
+        this.mStoreDirectory = storeDirectory;
+    }
+
+    public static synchronized BlobStore getInstance() {
+        if(sInstance == null) sInstance = new BlobStore(new File(Tools.DIR_GAME_HOME, "blobs"));
+        return sInstance;
+    }
+
+    /**
+     * Put a file from the store at the target path, replacing whatever is there.
+     * The target is hard linked to the stored file, or gets a copy of it if linking is not possible.
+     * @param hash the SHA-1 or SHA-512 hash of the file
+     * @param targetFile the destination file
+     * @return true if the file was in the store and is now at the target path, false otherwise
+     */
+    public boolean materialize(String hash, File targetFile) {
+        File blobFile = getBlobFile(hash);
+        if(!blobFile.isFile()) return false;
+        if(!DownloadUtils.verifyFileHash(blobFile, hash)) {
+            Log.w("BlobStore", "Removing damaged blob "+hash);
+            if(!blobFile.delete()) Log.w("BlobStore", "Failed to remove "+blobFile.getName());
+            return false;
+        }
+        try {
+            FileUtils.ensureParentDirectory(targetFile);
+            if(targetFile.exists() && !targetFile.delete()) return false;
+            if(!tryLink(blobFile, targetFile)) org.apache.commons.io.FileUtils.copyFile(blobFile, targetFile);
+            VerifiedFileIndex.getInstance().markVerified(targetFile, hash);
+            return true;
+        }catch (IOException e) {
+            Log.w("BlobStore", "Failed to take "+targetFile.getName()+" from the store", e);
+            return false;
+        }
+    }
+
+    /**
+     * Add a verified file to the store. Nothing is done if the filesystem doesn't support hard links,
+     * since keeping a second copy of every file would defeat the purpose of the store.
+     * @param file the file, which must match the hash
+     * @param hash the SHA-1 or SHA-512 hash of the file
+     */
+    public void add(File file, String hash) {
+        if(mLinksUnsupported) return;
+        File blobFile = getBlobFile(hash);
+        if(blobFile.exists()) return;
+        if(!FileUtils.ensureParentDirectorySilently(blobFile)) return;
+        try {
+            Os.link(file.getAbsolutePath(), blobFile.getAbsolutePath());
+        }catch (ErrnoException e) {
+            if(e.errno == OsConstants.EEXIST) return;
+            Log.i("BlobStore", "Hard links are not supported here, not storing any files", e);
+            mLinksUnsupported = true;
+        }
+    }
+
+    /**
+     * Remove the blobs that are not used by any instance anymore. Only does the work once a day.
+     */
+    public void pruneIfStale() {
+        File pruneMarker = new File(mStoreDirectory, ".last_prune");
+        if(!mStoreDirectory.isDirectory()) return;
+        if(System.currentTimeMillis() - pruneMarker.lastModified() < PRUNE_INTERVAL_MS) return;
+        int removedBlobs = 0;
+        File[] prefixDirectories = mStoreDirectory.listFiles(File::isDirectory);
+        if(prefixDirectories == null) return;
+        for(File prefixDirectory : prefixDirectories) {
+            File[] blobFiles = prefixDirectory.listFiles();
+            if(blobFiles == null) continue;
+            for(File blobFile : blobFiles) {
+                try {
+                    if(Os.stat(blobFile.getAbsolutePath()).st_nlink > 1) continue;
+                }catch (ErrnoException e) {
+                    continue;
+                }
+                if(blobFile.delete()) removedBlobs++;
+            }
+        }
+        Log.i("BlobStore", "Removed "+removedBlobs+" unused blobs");
+        try {
+            if(!pruneMarker.createNewFile() && !pruneMarker.setLastModified(System.currentTimeMillis()))
+                Log.w("BlobStore", "Failed to update the prune marker");
+        }catch (IOException e) {
+            Log.w("BlobStore", "Failed to update the prune marker", e);
+        }
+    }
+
+    private boolean tryLink(File blobFile, File targetFile) {
+        if(mLinksUnsupported) return false;
+        try {
+            Os.link(blobFile.getAbsolutePath(), targetFile.getAbsolutePath());
+            return true;
+        }catch (ErrnoException e) {
+            Log.i("BlobStore", "Failed to link "+targetFile.getName()+", copying it instead", e);
+            return false;
+        }
+    }
+
+    private File getBlobFile(String hash) {
+        String lowerCaseHash = hash.toLowerCase();
+        return new File(mStoreDirectory, lowerCaseHash.substring(0, 2) + File.separator + lowerCaseHash);
+    }
+}
@@ -0,0 +1,171 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A metadata file cached on disk together with the validators (ETag/Last-Modified) of the response it
+ * came from. The validators are stored in a ".meta" file next to it, along with the time the content
+ * was last confirmed to be up to date. Once the content is older than its time-to-live, it gets
+ * revalidated with a conditional request, which only costs a 304 response if nothing has changed.
+ * Large entries are stored compressed and decompressed when they are read.
+ */
+public class CachedMetadata {
+    private static final String META_SUFFIX = ".meta";
+    // Entries at least this large are stored gzip-compressed, which saves space and flash writes
+    private static final int COMPRESS_THRESHOLD = 65536;
+
+    private final File mCacheFile;
+    private final File mMetaFile;
+    private String mETag;
+    private String mLastModified;
+    private long mValidatedTime = -1;
+
+    public CachedMetadata(File cacheFile) {
+        this.mCacheFile = cacheFile;
+        this.mMetaFile = new File(cacheFile.getParentFile(), cacheFile.getName() + META_SUFFIX);
+        readMeta();
+    }
+
+    /**
+     * @return the cached content, or null if there is none or it can't be read
+     */
+    @Nullable
+    public String read() {
+        if(!mCacheFile.isFile() || !mCacheFile.canRead()) return null;
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(mCacheFile))) {
+            // Large entries are stored compressed, and text never starts with the gzip magic number
+            inputStream.mark(2);
+            boolean compressed = inputStream.read() == 0x1f && inputStream.read() == 0x8b;
+            inputStream.reset();
+            return Tools.read(compressed ? new GZIPInputStream(inputStream) : inputStream);
+        }catch (IOException e) {
+            Log.i("CachedMetadata", "Failed to read the cached file", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param ttlMs the time-to-live of the content
+     * @return true if the content was validated less than ttlMs ago and can be used without asking the server
+     */
+    public boolean isFresh(long ttlMs) {
+        return System.currentTimeMillis() < mValidatedTime + ttlMs;
+    }
+
+    /**
+     * Add the headers that make the server answer with 304 Not Modified if the content hasn't changed.
+     * @param request the request to add the headers to
+     */
+    public void addConditionalHeaders(TransportRequest request) {
+        if(mETag != null) request.setHeader("If-None-Match", mETag);
+        if(mLastModified != null) request.setHeader("If-Modified-Since", mLastModified);
+    }
+
+    /**
+     * Record that the server confirmed that the cached content is still up to date.
+     * @param response the 304 response, which may carry updated validators
+     */
+    public void markRevalidated(TransportResponse response) {
+        String eTag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if(eTag != null) mETag = eTag;
+        if(lastModified != null) mLastModified = lastModified;
+        mValidatedTime = System.currentTimeMillis();
+        writeMeta();
+    }
+
+    /**
+     * Replace the cached content.
+     * @param content the new content
+     * @param response the response that the content came from, used for its validators
+     */
+    public void store(String content, TransportResponse response) {
+        mETag = response.getHeader("ETag");
+        mLastModified = response.getHeader("Last-Modified");
+        mValidatedTime = System.currentTimeMillis();
+        boolean canWrite;
+        if(mCacheFile.exists()) {
+            canWrite = mCacheFile.canWrite();
+        } else {
+            canWrite = FileUtils.ensureParentDirectorySilently(mCacheFile);
+        }
+        if(!canWrite) return;
+        // Don't let the old validators vouch for the new content if writing it fails halfway
+        if(mMetaFile.exists() && !mMetaFile.delete()) return;
+        try {
+            writeContent(content);
+        }catch (IOException e) {
+            Log.i("CachedMetadata", "Failed to cache the string", e);
+            return;
+        }
+        writeMeta();
+    }
+
+    private void writeContent(String content) throws IOException {
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        OutputStream outputStream = new FileOutputStream(mCacheFile);
+        if(contentBytes.length >= COMPRESS_THRESHOLD) outputStream = new GZIPOutputStream(outputStream, 8192);
+        try {
+            outputStream.write(contentBytes);
+        }finally {
+            outputStream.close();
+        }
+    }
+
+    private void readMeta() {
+        if(!mMetaFile.isFile()) {
+            // Cache files from before the validators were stored are judged by their age
+            if(mCacheFile.isFile()) mValidatedTime = mCacheFile.lastModified();
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mMetaFile), StandardCharsets.UTF_8))) {
+            mETag = emptyToNull(reader.readLine());
+            mLastModified = emptyToNull(reader.readLine());
+            String validatedTime = reader.readLine();
+            mValidatedTime = validatedTime != null ? Long.parseLong(validatedTime) : -1;
+        }catch (IOException | NumberFormatException e) {
+            Log.w("CachedMetadata", "Failed to read the cache validators", e);
+            mETag = mLastModified = null;
+            mValidatedTime = -1;
+        }
+    }
+
+    private void writeMeta() {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(mMetaFile), StandardCharsets.UTF_8)) {
+            writer.write(nullToEmpty(mETag) + "\n" + nullToEmpty(mLastModified) + "\n" + mValidatedTime + "\n");
+        }catch (IOException e) {
+            Log.w("CachedMetadata", "Failed to save the cache validators", e);
+        }
+    }
+
+    @Nullable
+    private static String emptyToNull(@Nullable String string) {
+        if(string == null || string.isEmpty()) return null;
+        return string;
+    }
+
+    private static String nullToEmpty(@Nullable String string) {
+        return string == null ? "" : string;
+    }
+}
@@ -0,0 +1,90 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops all requests to a host after it failed several times in a row, instead of letting every
+ * download thread keep hammering it. After a while, a single trial request is let through;
+ * if it succeeds the host is unblocked, otherwise it stays blocked for longer.
+ */
+public class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long BASE_OPEN_TIME_MS = 10000;
+    private static final long MAX_OPEN_TIME_MS = 120000;
+    // How long other requests wait while the trial request is running
+    private static final long TRIAL_WAIT_MS = 1000;
+    private static CircuitBreaker sInstance;
+
+    private final Map<String, HostState> mHostStates = new HashMap<>();
+
+    public static synchronized CircuitBreaker getInstance() {
+        if(sInstance == null) sInstance = new CircuitBreaker();
+        return sInstance;
+    }
+
+    /**
+     * Check whether a request to the host may be made. If this returns true, the request is the trial
+     * request of a blocked host, and the caller must call recordNeutral() once the request is over,
+     * no matter how it ended (after recordSuccess() or recordFailure(), that call does nothing).
+     * @param hostKey the host key, see DownloadScheduler.getHostKey()
+     * @return true if the request is a trial request
+     * @throws CircuitOpenException if the host is blocked
+     */
+    public synchronized boolean checkAllowed(String hostKey) throws CircuitOpenException {
+        HostState hostState = mHostStates.get(hostKey);
+        if(hostState == null || hostState.openUntil == 0) return false;
+        long currentTime = SystemClock.elapsedRealtime();
+        if(currentTime < hostState.openUntil)
+            throw new CircuitOpenException(hostKey, hostState.openUntil - currentTime);
+        if(hostState.trialRunning) throw new CircuitOpenException(hostKey, TRIAL_WAIT_MS);
+        hostState.trialRunning = true;
+        return true;
+    }
+
+    /**
+     * End a trial request that neither succeeded nor failed because of the host (for example a 404,
+     * a failed hash check or a cancelled download), so that the next request becomes the trial.
+     * @param hostKey the host key
+     */
+    public synchronized void recordNeutral(String hostKey) {
+        HostState hostState = mHostStates.get(hostKey);
+        if(hostState != null) hostState.trialRunning = false;
+    }
+
+    public synchronized void recordSuccess(String hostKey) {
+        mHostStates.remove(hostKey);
+    }
+
+    /**
+     * Record a failure caused by the host (a connection error, a timeout or a server error).
+     * @param hostKey the host key
+     */
+    public synchronized void recordFailure(String hostKey) {
+        HostState hostState = mHostStates.get(hostKey);
+        if(hostState == null) {
+            hostState = new HostState();
+            mHostStates.put(hostKey, hostState);
+        }
+        hostState.consecutiveFailures++;
+        if(!hostState.trialRunning && hostState.consecutiveFailures < FAILURE_THRESHOLD) return;
+        if(hostState.trialRunning) hostState.openCount++;
+        hostState.trialRunning = false;
+        // Don't extend the block if the failure comes from a request that started before it
+        if(hostState.openUntil > SystemClock.elapsedRealtime()) return;
+        long openTime = Math.min(BASE_OPEN_TIME_MS << Math.min(hostState.openCount, 8), MAX_OPEN_TIME_MS);
+        hostState.openUntil = SystemClock.elapsedRealtime() + openTime;
+        Log.w("CircuitBreaker", "Blocking " + hostKey + " for " + openTime + " ms after "
+                + hostState.consecutiveFailures + " failures");
+    }
+
+    private static class HostState {
+        int consecutiveFailures;
+        int openCount;
+        long openUntil;
+        boolean trialRunning;
+    }
+}
@@ -0,0 +1,16 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request to a host that failed too many times recently.
+ */
+public class CircuitOpenException extends IOException {
+    /** How long the host stays blocked */
+    public final long remainingMs;
+
+    public CircuitOpenException(String hostKey, long remainingMs) {
+        super("Host " + hostKey + " is failing, not trying again for " + remainingMs + " ms");
+        this.remainingMs = remainingMs;
+    }
+}
@@ -0,0 +1,206 @@
+package net.kdt.pojavlaunch.downloader;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A group of downloads submitted to the DownloadScheduler, which can be waited for or cancelled
+ * together.
+ */
+public class DownloadBatch {
+    /** Downloads smaller than this are grouped together into a single scheduler work unit. */
+    public static final long SMALL_FILE_SIZE = 16384;
+    private static final int SMALL_FILE_GROUP_SIZE = 32;
+    final DownloadScheduler scheduler;
+    private final Map<String, List<Runnable>> mSmallFileGroups = new HashMap<>();
+    private final Map<String, Long> mSmallFileGroupSizes = new HashMap<>();
+    private final Set<ScheduledDownload> mRunningDownloads = new HashSet<>();
+    private int mOutstandingDownloads;
+    private boolean mSealed;
+    private boolean mCancelled;
+    private RuntimeException mCrashException;
+    private Runnable mCompletionListener;
+
+    DownloadBatch(DownloadScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Submit a download to the scheduler.
+     * @param url the URL the task downloads from, used to limit the connections per host
+     * @param size the expected size of the download, or 0 if unknown
+     * @param task the download task
+     */
+    public void submit(String url, long size, Runnable task) {
+        submitForHost(DownloadScheduler.getHostKey(url), size, task);
+    }
+
+    /**
+     * Submit a download whose URL is not known in advance.
+     * @param hostKey the key used to group the task with other tasks from the same source
+     * @param size the expected size of the download, or 0 if unknown
+     * @param task the download task
+     */
+    public void submitForHost(String hostKey, long size, Runnable task) {
+        ScheduledDownload scheduledDownload;
+        synchronized (this) {
+            if(mCancelled) return;
+            if(mSealed) throw new IllegalStateException("Batch already sealed");
+            if(size > 0 && size < SMALL_FILE_SIZE) {
+                scheduledDownload = addToSmallFileGroup(hostKey, size, task);
+                if(scheduledDownload == null) return;
+            } else {
+                scheduledDownload = new ScheduledDownload(this, hostKey, Math.max(size, 0), task);
+            }
+            mOutstandingDownloads++;
+        }
+        scheduler.enqueue(scheduledDownload);
+    }
+
+    /**
+     * Mark the batch as complete, which means that no more downloads will be submitted into it.
+     * Must be called before waiting for the batch to finish. Also submits the partially filled
+     * groups of small downloads.
+     */
+    public void seal() {
+        List<ScheduledDownload> remainingGroups = new ArrayList<>();
+        synchronized (this) {
+            if(!mSealed && !mCancelled) {
+                for(String hostKey : mSmallFileGroups.keySet()) {
+                    remainingGroups.add(createGroupDownload(hostKey));
+                }
+                mSmallFileGroups.clear();
+                mSmallFileGroupSizes.clear();
+                mOutstandingDownloads += remainingGroups.size();
+            }
+            mSealed = true;
+        }
+        for(ScheduledDownload groupDownload : remainingGroups) scheduler.enqueue(groupDownload);
+        synchronized (this) {
+            notifyAll();
+        }
+        notifyIfComplete();
+    }
+
+    private ScheduledDownload addToSmallFileGroup(String hostKey, long size, Runnable task) {
+        List<Runnable> group = mSmallFileGroups.get(hostKey);
+        if(group == null) {
+            group = new ArrayList<>(SMALL_FILE_GROUP_SIZE);
+            mSmallFileGroups.put(hostKey, group);
+            mSmallFileGroupSizes.put(hostKey, 0L);
+        }
+        group.add(task);
+        mSmallFileGroupSizes.put(hostKey, mSmallFileGroupSizes.get(hostKey) + size);
+        if(group.size() < SMALL_FILE_GROUP_SIZE) return null;
+        ScheduledDownload groupDownload = createGroupDownload(hostKey);
+        mSmallFileGroups.remove(hostKey);
+        mSmallFileGroupSizes.remove(hostKey);
+        return groupDownload;
+    }
+
+    private ScheduledDownload createGroupDownload(String hostKey) {
+        List<Runnable> group = mSmallFileGroups.get(hostKey);
+        return new ScheduledDownload(this, hostKey, mSmallFileGroupSizes.get(hostKey),
+                group.toArray(new Runnable[0]));
+    }
+
+    /**
+     * Wait for all downloads in this batch to finish.
+     * @param timeoutMs the maximum time to wait
+     * @return true if all downloads finished, false if the timeout has elapsed
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public synchronized boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(!isComplete()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel all downloads of this batch. Downloads that have not started yet will not run,
+     * and running downloads get interrupted.
+     */
+    public void cancel() {
+        ScheduledDownload[] runningDownloads;
+        synchronized (this) {
+            if(mCancelled) return;
+            mCancelled = true;
+            mSmallFileGroups.clear();
+            mSmallFileGroupSizes.clear();
+            runningDownloads = mRunningDownloads.toArray(new ScheduledDownload[0]);
+        }
+        int removed = scheduler.removePending(this);
+        for(ScheduledDownload download : runningDownloads) download.cancel();
+        synchronized (this) {
+            mOutstandingDownloads -= removed;
+            notifyAll();
+        }
+        notifyIfComplete();
+    }
+
+    /**
+     * Set a listener that gets called once all downloads of this batch have finished, which allows
+     * waiting for the batch without polling. If the batch is already complete, the listener is
+     * called right away.
+     * @param listener the listener, called on the thread that finished the last download
+     */
+    public void setCompletionListener(@Nullable Runnable listener) {
+        synchronized (this) {
+            mCompletionListener = listener;
+        }
+        notifyIfComplete();
+    }
+
+    private void notifyIfComplete() {
+        Runnable listener;
+        synchronized (this) {
+            if(!isComplete() || mCompletionListener == null) return;
+            listener = mCompletionListener;
+            mCompletionListener = null;
+        }
+        listener.run();
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return the first unchecked exception thrown by a task of this batch, if any
+     */
+    @Nullable
+    public synchronized RuntimeException getCrashException() {
+        return mCrashException;
+    }
+
+    private boolean isComplete() {
+        return mSealed && mOutstandingDownloads == 0;
+    }
+
+    synchronized void onDownloadStarted(ScheduledDownload download) {
+        mRunningDownloads.add(download);
+    }
+
+    synchronized void onDownloadCrashed(RuntimeException exception) {
+        if(mCrashException == null) mCrashException = exception;
+    }
+
+    void onDownloadFinished(ScheduledDownload download) {
+        synchronized (this) {
+            mRunningDownloads.remove(download);
+            mOutstandingDownloads--;
+            notifyAll();
+        }
+        notifyIfComplete();
+    }
+}
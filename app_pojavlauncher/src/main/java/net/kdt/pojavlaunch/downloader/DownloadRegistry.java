@@ -0,0 +1,126 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps track of the files that are being downloaded by all downloaders, by their target path and
+ * by their hash. A download of a file that is already being downloaded waits for the running download
+ * and shares its result, instead of writing the same file at the same time. A download of a file
+ * whose hash is already being downloaded to another path waits as well, and then copies the result.
+ * Two downloads of the same path with different hashes are reported as an error.
+ */
+public class DownloadRegistry {
+    private static final DownloadRegistry sInstance = new DownloadRegistry();
+
+    private final Map<String, InFlightDownload> mPathDownloads = new HashMap<>();
+    private final Map<String, InFlightDownload> mHashDownloads = new HashMap<>();
+
+    public static DownloadRegistry getInstance() {
+        return sInstance;
+    }
+
+    public interface DownloadAction {
+        void download() throws IOException;
+    }
+
+    /**
+     * Run a download, unless the same file is already being downloaded, in which case the result of
+     * that download is used.
+     * @param targetFile the file that the action writes
+     * @param hash the expected hash of the file, or null if it is not known
+     * @param action the action that downloads the file
+     * @return true if the action was run, false if the file came from another download
+     * @throws IOException if the download failed (either this one or the one that was joined), or
+     *                     if the same path is being downloaded with a different hash
+     */
+    public boolean download(File targetFile, @Nullable String hash, DownloadAction action) throws IOException {
+        String path = targetFile.getAbsolutePath();
+        String hashKey = hash != null ? hash.toLowerCase(Locale.ROOT) : null;
+        InFlightDownload ownDownload = null;
+        InFlightDownload runningDownload;
+        synchronized (this) {
+            runningDownload = mPathDownloads.get(path);
+            if(runningDownload != null && hashKey != null && runningDownload.hash != null
+                    && !runningDownload.hash.equals(hashKey)) {
+                Log.w("DownloadRegistry", "Conflicting hashes for "+path+": "+runningDownload.hash+" and "+hashKey);
+                throw new IOException("The file "+targetFile.getName()+" is being downloaded with a different hash ("
+                        + runningDownload.hash + " instead of " + hashKey + ")");
+            }
+            if(runningDownload == null && hashKey != null) runningDownload = mHashDownloads.get(hashKey);
+            if(runningDownload == null) {
+                ownDownload = new InFlightDownload(targetFile, hashKey);
+                mPathDownloads.put(path, ownDownload);
+                if(hashKey != null) mHashDownloads.put(hashKey, ownDownload);
+            }
+        }
+        if(runningDownload != null) {
+            runningDownload.await();
+            if(!runningDownload.file.equals(targetFile)) copyResult(runningDownload, targetFile);
+            return false;
+        }
+        IOException failure = null;
+        try {
+            action.download();
+            return true;
+        }catch (IOException e) {
+            failure = e;
+            throw e;
+        }catch (RuntimeException | Error e) {
+            failure = new IOException(e);
+            throw e;
+        }finally {
+            synchronized (this) {
+                mPathDownloads.remove(path);
+                if(hashKey != null && mHashDownloads.get(hashKey) == ownDownload) mHashDownloads.remove(hashKey);
+            }
+            ownDownload.finish(failure);
+        }
+    }
+
+    private static void copyResult(InFlightDownload download, File targetFile) throws IOException {
+        // Prefer the store, as it links the file instead of copying it
+        if(BlobStore.getInstance().materialize(download.hash, targetFile)) return;
+        FileUtils.ensureParentDirectory(targetFile);
+        org.apache.commons.io.FileUtils.copyFile(download.file, targetFile, false);
+        VerifiedFileIndex.getInstance().markVerified(targetFile, download.hash);
+    }
+
+    private static class InFlightDownload {
+        final File file;
+        final String hash;
+        private final CountDownLatch mFinishLatch = new CountDownLatch(1);
+        private volatile IOException mFailure;
+
+        InFlightDownload(File file, @Nullable String hash) {
+            this.file = file;
+            this.hash = hash;
+        }
+
+        void finish(@Nullable IOException failure) {
+            mFailure = failure;
+            mFinishLatch.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                mFinishLatch.await();
+            }catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a download of "+file.getName());
+            }
+            IOException failure = mFailure;
+            if(failure != null) throw new IOException("The download of "+file.getName()+" failed", failure);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The launcher-wide download scheduler. Downloads are submitted in DownloadBatches, and are
+ * started when their host has a free connection slot. The amount of slots of each host adapts
+ * to the measured throughput and latency (see HostLimiter), within a global limit.
+ */
+public class DownloadScheduler {
+    public static final int MAX_CONCURRENT_DOWNLOADS = 16;
+    private static final int MAX_QUEUED_TASKS = 16384;
+    private static final long MAX_QUEUED_BYTES = 1024L * 1024L * 1024L;
+    private static DownloadScheduler sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Map<String, HostQueue> mHostQueues = new HashMap<>();
+    private SchedulingPolicy mSchedulingPolicy = SchedulingPolicy.LARGEST_FIRST;
+    private int mRunningDownloads;
+    private int mQueuedTasks;
+    private long mQueuedBytes;
+
+    private DownloadScheduler() {
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_DOWNLOADS, MAX_CONCURRENT_DOWNLOADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized DownloadScheduler getInstance() {
+        if(sInstance == null) sInstance = new DownloadScheduler();
+        return sInstance;
+    }
+
+    /**
+     * Create a new batch of downloads on this scheduler.
+     * @return the new DownloadBatch
+     */
+    public DownloadBatch newBatch() {
+        return new DownloadBatch(this);
+    }
+
+    /**
+     * Change the order in which pending downloads are started. Already queued downloads are
+     * moved over to the new policy.
+     * @param schedulingPolicy the new SchedulingPolicy
+     */
+    public synchronized void setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+        mSchedulingPolicy = schedulingPolicy;
+        for(HostQueue hostQueue : mHostQueues.values()) {
+            SchedulingPolicy.PendingQueue oldQueue = hostQueue.pending;
+            hostQueue.pending = schedulingPolicy.createQueue();
+            for(ScheduledDownload download : oldQueue) hostQueue.pending.add(download);
+        }
+    }
+
+    /**
+     * Get the key that downloads from the same server are grouped under.
+     * @param url the URL of a download
+     * @return the host key
+     */
+    public static String getHostKey(String url) {
+        try {
+            return getHostKey(new URL(url));
+        }catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    public static String getHostKey(URL url) {
+        int port = url.getPort();
+        if(port == -1) port = url.getDefaultPort();
+        return url.getHost() + ":" + port;
+    }
+
+    /**
+     * Signal that a request to a host failed, which lowers the amount of concurrent downloads
+     * allowed for that host.
+     * @param url the URL of the failed request
+     */
+    public synchronized void reportFailure(String url) {
+        getHostQueue(getHostKey(url)).limiter.onFailure();
+    }
+
+    synchronized void enqueue(ScheduledDownload download) {
+        boolean interrupted = false;
+        // Apply back-pressure to the submitter if too much work is queued up
+        while(mQueuedTasks > 0 && (mQueuedTasks >= MAX_QUEUED_TASKS || mQueuedBytes >= MAX_QUEUED_BYTES)) {
+            try {
+                wait();
+            }catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+        getHostQueue(download.hostKey).pending.add(download);
+        mQueuedTasks++;
+        mQueuedBytes += download.size;
+        dispatch();
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    synchronized void onDownloadFinished(ScheduledDownload download, long durationNanos) {
+        mRunningDownloads--;
+        getHostQueue(download.hostKey).limiter.release(download.size, download.getTaskCount(), durationNanos);
+        dispatch();
+    }
+
+    /**
+     * Remove all downloads of a batch that have not started yet.
+     * @param batch the batch
+     * @return the amount of removed downloads
+     */
+    synchronized int removePending(DownloadBatch batch) {
+        int removed = 0;
+        for(HostQueue hostQueue : mHostQueues.values()) {
+            Iterator<ScheduledDownload> iterator = hostQueue.pending.iterator();
+            while(iterator.hasNext()) {
+                ScheduledDownload download = iterator.next();
+                if(download.batch != batch) continue;
+                iterator.remove();
+                mQueuedTasks--;
+                mQueuedBytes -= download.size;
+                removed++;
+            }
+        }
+        notifyAll();
+        return removed;
+    }
+
+    private HostQueue getHostQueue(String hostKey) {
+        HostQueue hostQueue = mHostQueues.get(hostKey);
+        if(hostQueue == null) {
+            hostQueue = new HostQueue(mSchedulingPolicy.createQueue());
+            mHostQueues.put(hostKey, hostQueue);
+        }
+        return hostQueue;
+    }
+
+    private void dispatch() {
+        boolean dispatched = true;
+        // Go around the hosts one download at a time, so that one host can't hog all global slots
+        while(dispatched && mRunningDownloads < MAX_CONCURRENT_DOWNLOADS) {
+            dispatched = false;
+            for(HostQueue hostQueue : mHostQueues.values()) {
+                if(mRunningDownloads >= MAX_CONCURRENT_DOWNLOADS) break;
+                if(hostQueue.pending.isEmpty() || !hostQueue.limiter.tryAcquire()) continue;
+                ScheduledDownload download = hostQueue.pending.poll();
+                mQueuedTasks--;
+                mQueuedBytes -= download.size;
+                mRunningDownloads++;
+                download.start(mExecutor);
+                dispatched = true;
+            }
+        }
+        notifyAll();
+    }
+
+    private static class HostQueue {
+        final HostLimiter limiter = new HostLimiter();
+        SchedulingPolicy.PendingQueue pending;
+
+        HostQueue(SchedulingPolicy.PendingQueue pending) {
+            this.pending = pending;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package net.kdt.pojavlaunch.downloader;
+
+import net.kdt.pojavlaunch.Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects the RequestTimings of all requests since the launcher was started, aggregated into
+ * histograms per host and download class, so that slow downloads can be blamed on the right thing.
+ */
+public class DownloadTelemetry {
+    public static final String[] PHASE_NAMES = {"dns", "connect", "tls", "first_byte", "transfer", "disk", "hash"};
+    private static final int PHASE_DNS = 0, PHASE_CONNECT = 1, PHASE_TLS = 2, PHASE_FIRST_BYTE = 3,
+            PHASE_TRANSFER = 4, PHASE_DISK = 5, PHASE_HASH = 6;
+    private static final String[] CLASS_NAMES = {"metadata", "thumbnail", "install", "background"};
+    // Bucket i counts durations below 2^i milliseconds, the last one counts everything above
+    private static final int BUCKET_COUNT = 18;
+    private static DownloadTelemetry sInstance;
+
+    private final Map<String, HostStats> mHostStats = new HashMap<>();
+
+    public static synchronized DownloadTelemetry getInstance() {
+        if(sInstance == null) sInstance = new DownloadTelemetry();
+        return sInstance;
+    }
+
+    /**
+     * Add a finished request to the statistics.
+     * @param timing the timing of the request
+     */
+    public synchronized void record(RequestTiming timing) {
+        HostStats hostStats = getHostStats(timing.hostKey, timing.downloadClass);
+        hostStats.requests++;
+        if(timing.failed) hostStats.failures++;
+        hostStats.bytes += timing.bytes;
+        hostStats.addSample(PHASE_DNS, timing.dnsNanos);
+        hostStats.addSample(PHASE_CONNECT, timing.connectNanos);
+        hostStats.addSample(PHASE_TLS, timing.tlsNanos);
+        hostStats.addSample(PHASE_FIRST_BYTE, timing.firstByteNanos);
+        hostStats.addSample(PHASE_TRANSFER, timing.transferNanos);
+        hostStats.addSample(PHASE_DISK, timing.diskNanos);
+        hostStats.addSample(PHASE_HASH, timing.hashNanos);
+        if(timing.transferNanos > 0) hostStats.transferBytes += timing.bytes;
+    }
+
+    /**
+     * Add a DNS lookup that was measured outside of a request.
+     * @param hostKey the host key of the request that triggered the lookup
+     * @param downloadClass the BandwidthManager priority class of that request
+     * @param nanos the duration of the lookup
+     */
+    public synchronized void recordDns(String hostKey, int downloadClass, long nanos) {
+        getHostStats(hostKey, downloadClass).addSample(PHASE_DNS, nanos);
+    }
+
+    private HostStats getHostStats(String hostKey, int downloadClass) {
+        String key = hostKey + "/" + downloadClass;
+        HostStats hostStats = mHostStats.get(key);
+        if(hostStats == null) {
+            hostStats = new HostStats(hostKey, getClassName(downloadClass));
+            mHostStats.put(key, hostStats);
+        }
+        return hostStats;
+    }
+
+    public synchronized void reset() {
+        mHostStats.clear();
+    }
+
+    /**
+     * @return a human-readable summary of the statistics, one block per host and download class
+     */
+    public synchronized String getSummary() {
+        if(mHostStats.isEmpty()) return "No downloads yet";
+        StringBuilder summary = new StringBuilder();
+        for(HostStats hostStats : getSortedStats()) {
+            summary.append(hostStats.host).append(" (").append(hostStats.downloadClass).append(")\n");
+            summary.append(String.format(Locale.ROOT, "  %d requests, %d failed, %.2f MB, %.2f MB/s\n",
+                    hostStats.requests, hostStats.failures, hostStats.bytes / (1024d * 1024d),
+                    hostStats.getThroughput() / (1024d * 1024d)));
+            for(int phase = 0; phase < PHASE_NAMES.length; phase++) {
+                if(hostStats.counts[phase] == 0) continue;
+                summary.append(String.format(Locale.ROOT, "  %s: avg %.1f ms, p50 < %d ms, p90 < %d ms\n",
+                        PHASE_NAMES[phase], hostStats.getAverageMillis(phase),
+                        hostStats.getPercentileBound(phase, 0.5), hostStats.getPercentileBound(phase, 0.9)));
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Write the statistics into a JSON file.
+     * @param outputFile the destination file
+     * @throws IOException if the file can't be written
+     */
+    public void exportJson(File outputFile) throws IOException {
+        String json;
+        synchronized (this) {
+            json = Tools.GLOBAL_GSON.toJson(getSortedStats());
+        }
+        Tools.write(outputFile.getAbsolutePath(), json);
+    }
+
+    private List<HostStats> getSortedStats() {
+        List<HostStats> sortedStats = new ArrayList<>(mHostStats.values());
+        Collections.sort(sortedStats, (a, b) -> Long.compare(b.bytes, a.bytes));
+        return sortedStats;
+    }
+
+    private static String getClassName(int downloadClass) {
+        if(downloadClass < 0 || downloadClass >= CLASS_NAMES.length) return Integer.toString(downloadClass);
+        return CLASS_NAMES[downloadClass];
+    }
+
+    private static class HostStats {
+        public final String host;
+        public final String downloadClass;
+        public int requests;
+        public int failures;
+        public long bytes;
+        public long transferBytes;
+        public final long[] counts = new long[PHASE_NAMES.length];
+        public final long[] totalNanos = new long[PHASE_NAMES.length];
+        public final long[][] histograms = new long[PHASE_NAMES.length][BUCKET_COUNT];
+
+        HostStats(String host, String downloadClass) {
+            this.host = host;
+            this.downloadClass = downloadClass;
+        }
+
+        void addSample(int phase, long nanos) {
+            if(nanos < 0) return;
+            counts[phase]++;
+            totalNanos[phase] += nanos;
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while(bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) bucket++;
+            histograms[phase][bucket]++;
+        }
+
+        double getAverageMillis(int phase) {
+            return totalNanos[phase] / (counts[phase] * 1000000d);
+        }
+
+        long getPercentileBound(int phase, double percentile) {
+            long target = (long) Math.ceil(counts[phase] * percentile);
+            long seen = 0;
+            for(int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += histograms[phase][bucket];
+                if(seen >= target) return 1L << bucket;
+            }
+            return 1L << (BUCKET_COUNT - 1);
+        }
+
+        double getThroughput() {
+            long transferNanos = totalNanos[PHASE_TRANSFER];
+            if(transferNanos == 0) return 0;
+            return transferBytes * 1e9 / transferNanos;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.io.IOException;
+
+/**
+ * The transport used by the launcher to talk to HTTP servers. All game file, mod and API
+ * downloads go through the transport returned by DownloadUtils.getTransport(), which allows
+ * the connection handling to be swapped out without touching the download code.
+ */
+public interface DownloadTransport {
+    /**
+     * Execute an HTTP request. The caller must close the returned response, which
+     * allows the transport to reuse the underlying connection.
+     * @param request the request to execute
+     * @return the response from the server
+     * @throws IOException if the connection fails
+     */
+    TransportResponse execute(TransportRequest request) throws IOException;
+}
@@ -0,0 +1,109 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An OutputStream that computes the digest of all the data written through it, which allows
+ * a file to be verified while it is being downloaded instead of reading it back afterwards.
+ */
+public class HashingOutputStream extends FilterOutputStream {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private final MessageDigest mDigest;
+    private long mDigestNanos;
+
+    public HashingOutputStream(OutputStream out, MessageDigest digest) {
+        super(out);
+        this.mDigest = digest;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        long startTime = System.nanoTime();
+        mDigest.update((byte) b);
+        mDigestNanos += System.nanoTime() - startTime;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        long startTime = System.nanoTime();
+        mDigest.update(b, off, len);
+        mDigestNanos += System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return the total time spent updating the digest, in nanoseconds
+     */
+    public long getDigestNanos() {
+        return mDigestNanos;
+    }
+
+    /**
+     * @return the hex digest of all the data written so far. Resets the digest.
+     */
+    public String getHexDigest() {
+        return toHex(mDigest.digest());
+    }
+
+    /**
+     * Create a MessageDigest for the algorithm used to produce a hash. SHA-1 and SHA-512 hashes are
+     * told apart by their length.
+     * @param hexHash the hash in hexadecimal form
+     * @return the MessageDigest
+     * @throws IllegalArgumentException if the hash is neither SHA-1 or SHA-512
+     */
+    public static MessageDigest createDigest(String hexHash) {
+        String algorithm;
+        switch (hexHash.length()) {
+            case 40: algorithm = "SHA-1"; break;
+            case 128: algorithm = "SHA-512"; break;
+            default: throw new IllegalArgumentException("Unknown hash type: "+hexHash);
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        }catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(algorithm + " is required", e);
+        }
+    }
+
+    /**
+     * Feed the first bytes of a file into a digest.
+     * @param digest the digest to update
+     * @param file the file to read
+     * @param length the amount of bytes to read, or -1 to read the whole file
+     * @param buffer the buffer to use for reading
+     * @throws IOException if the file can't be read or is shorter than length
+     */
+    public static void updateDigest(MessageDigest digest, File file, long length, byte[] buffer) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            long remaining = length == -1 ? Long.MAX_VALUE : length;
+            while(remaining > 0) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(read == -1) {
+                    if(length == -1) return;
+                    throw new IOException("Unexpected end of file in " + file.getName());
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            int value = bytes[i] & 0xFF;
+            hex[i * 2] = HEX_DIGITS[value >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[value & 0x0F];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,81 @@
+package net.kdt.pojavlaunch.downloader;
+
+/**
+ * Adaptive concurrency limit for a single host.
+ * The limit grows by one connection per measurement window as long as the throughput keeps up and the
+ * latency of small requests doesn't rise, and shrinks when either of them gets worse. Failures halve it.
+ * Not thread safe, all calls are made with the DownloadScheduler lock held.
+ */
+class HostLimiter {
+    private static final double MIN_LIMIT = 1;
+    private static final double MAX_LIMIT = HttpURLConnectionTransport.MAX_CONNECTIONS_PER_HOST;
+    private static final double INITIAL_LIMIT = 4;
+    // Files below this size are dominated by the request latency rather than the transfer speed
+    private static final long LATENCY_SAMPLE_MAX_SIZE = 65536;
+    private static final double SHORT_LATENCY_WEIGHT = 0.3;
+    private static final double LONG_LATENCY_WEIGHT = 0.02;
+    private static final double CONGESTION_LATENCY_RATIO = 1.5;
+
+    private double mLimit = INITIAL_LIMIT;
+    private int mInFlight;
+    private double mShortLatency = -1;
+    private double mLongLatency = -1;
+    private long mWindowStart = System.nanoTime();
+    private long mWindowBytes;
+    private int mWindowTasks;
+    private double mLastThroughput;
+
+    boolean tryAcquire() {
+        if(mInFlight >= (int) mLimit) return false;
+        mInFlight++;
+        return true;
+    }
+
+    int getInFlight() {
+        return mInFlight;
+    }
+
+    int getLimit() {
+        return (int) mLimit;
+    }
+
+    void release(long bytes, int taskCount, long durationNanos) {
+        mInFlight--;
+        // Groups of small downloads are sampled by their average per-download time
+        if(bytes > 0 && bytes / taskCount < LATENCY_SAMPLE_MAX_SIZE) sampleLatency(durationNanos / taskCount);
+        mWindowBytes += Math.max(bytes, 0);
+        mWindowTasks++;
+        if(mWindowTasks < Math.max(4, (int) mLimit * 2)) return;
+
+        long now = System.nanoTime();
+        double throughput = mWindowBytes * 1e9 / Math.max(1, now - mWindowStart);
+        boolean latencyRising = mLongLatency > 0 && mShortLatency > mLongLatency * CONGESTION_LATENCY_RATIO;
+        if(!latencyRising && throughput >= mLastThroughput * 0.9) {
+            mLimit = Math.min(MAX_LIMIT, mLimit + 1);
+        } else {
+            mLimit = Math.max(MIN_LIMIT, mLimit - 1);
+        }
+        mLastThroughput = throughput;
+        resetWindow(now);
+    }
+
+    void onFailure() {
+        mLimit = Math.max(MIN_LIMIT, mLimit / 2);
+        resetWindow(System.nanoTime());
+    }
+
+    private void sampleLatency(long durationNanos) {
+        if(mShortLatency < 0) {
+            mShortLatency = mLongLatency = durationNanos;
+            return;
+        }
+        mShortLatency += (durationNanos - mShortLatency) * SHORT_LATENCY_WEIGHT;
+        mLongLatency += (durationNanos - mLongLatency) * LONG_LATENCY_WEIGHT;
+    }
+
+    private void resetWindow(long now) {
+        mWindowStart = now;
+        mWindowBytes = 0;
+        mWindowTasks = 0;
+    }
+}
@@ -0,0 +1,26 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a server returns an unsuccessful HTTP status code (other than "not found",
+ * which is reported as a FileNotFoundException).
+ */
+public class HttpStatusException extends IOException {
+    public final int statusCode;
+    /** How long the server asked to wait before retrying, or -1 if it didn't say */
+    public final long retryAfterMs;
+
+    public HttpStatusException(int statusCode, String message, long retryAfterMs) {
+        super("Server returned HTTP " + statusCode + ": " + message);
+        this.statusCode = statusCode;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * @return whether the error is on the server side or temporary, so that the request may succeed later
+     */
+    public boolean isRetryable() {
+        return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+}
@@ -0,0 +1,272 @@
+package net.kdt.pojavlaunch.downloader;
+
+import static net.kdt.pojavlaunch.PojavApplication.sExecutorService;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default transport, based on HttpURLConnection.
+ * HttpURLConnection already keeps a pool of idle keep-alive connections, but it only gives a
+ * connection back to the pool when its response body was read to the end and closed. This transport
+ * makes sure that this always happens, and also limits the amount of sockets open to a single host,
+ * so that a download of thousands of small files ends up reusing a few warm connections instead of
+ * doing a TLS handshake for every single file.
+ */
+public class HttpURLConnectionTransport implements DownloadTransport {
+    public static final int MAX_CONNECTIONS_PER_HOST = 8;
+    private static final int CONNECT_TIMEOUT = 10000;
+    // If more than this amount of bytes is left unread in a response, closing the socket is
+    // cheaper than draining it to keep it alive.
+    private static final int MAX_DRAIN_SIZE = 65536;
+    // The system caches DNS results, so the lookup is only measured once in a while. HttpURLConnection
+    // doesn't tell how long its own lookup took, so a separate one is timed in the background.
+    private static final long DNS_SAMPLE_INTERVAL_MS = 60000;
+
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> mLastDnsSamples = new ConcurrentHashMap<>();
+    private final String mUserAgent;
+
+    public HttpURLConnectionTransport(String userAgent) {
+        this.mUserAgent = userAgent;
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS_PER_HOST));
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        Semaphore hostPermits = getHostPermits(request.getHostKey());
+        acquirePermit(hostPermits, request);
+        RequestTiming timing = new RequestTiming(request.getHostKey(), request.priority);
+        try {
+            return new Response(openConnection(request, timing), hostPermits, timing);
+        }catch (IOException | RuntimeException e) {
+            hostPermits.release();
+            timing.failed = true;
+            DownloadTelemetry.getInstance().record(timing);
+            throw e;
+        }
+    }
+
+    /**
+     * Take a connection permit of a host, waiting no longer than the request allows.
+     * @param hostPermits the permits of the host of the request
+     * @param request the request
+     * @throws NoFreeConnectionException if no permit became free in time
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    static void acquirePermit(Semaphore hostPermits, TransportRequest request) throws IOException {
+        try {
+            if(request.connectionWaitMs < 0) {
+                hostPermits.acquire();
+            } else if(!hostPermits.tryAcquire(request.connectionWaitMs, TimeUnit.MILLISECONDS)) {
+                throw new NoFreeConnectionException(request.getHostKey(), request.connectionWaitMs);
+            }
+        }catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+    }
+
+    private void sampleDns(String host, RequestTiming timing) {
+        long currentTime = SystemClock.elapsedRealtime();
+        Long lastSampleTime = mLastDnsSamples.get(host);
+        if(lastSampleTime != null && currentTime - lastSampleTime < DNS_SAMPLE_INTERVAL_MS) return;
+        mLastDnsSamples.put(host, currentTime);
+        String hostKey = timing.hostKey;
+        int downloadClass = timing.downloadClass;
+        sExecutorService.execute(() -> {
+            long startTime = System.nanoTime();
+            try {
+                InetAddress.getAllByName(host);
+                DownloadTelemetry.getInstance().recordDns(hostKey, downloadClass, System.nanoTime() - startTime);
+            }catch (UnknownHostException e) {
+                // The connection attempt will report it
+            }
+        });
+    }
+
+    private Semaphore getHostPermits(String hostKey) {
+        Semaphore permits = mHostPermits.get(hostKey);
+        if(permits != null) return permits;
+        permits = new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+        Semaphore existingPermits = mHostPermits.putIfAbsent(hostKey, permits);
+        return existingPermits != null ? existingPermits : permits;
+    }
+
+    private HttpURLConnection openConnection(TransportRequest request, RequestTiming timing) throws IOException {
+        sampleDns(request.url.getHost(), timing);
+        HttpURLConnection conn = (HttpURLConnection) request.url.openConnection();
+        conn.setRequestMethod(request.method);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setDoInput(true);
+        conn.setRequestProperty("User-Agent", mUserAgent);
+        for(Map.Entry<String, String> header : request.headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if(request.body != null) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(request.body.length);
+        }
+        long startTime = System.nanoTime();
+        conn.connect();
+        long connectTime = System.nanoTime();
+        timing.connectNanos = connectTime - startTime;
+        if(request.body != null) {
+            try (OutputStream outputStream = conn.getOutputStream()) {
+                outputStream.write(request.body);
+            }
+        }
+        // Reads the status line/headers
+        timing.responseCode = conn.getResponseCode();
+        timing.firstByteNanos = System.nanoTime() - connectTime;
+        return conn;
+    }
+
+    private static class Response extends TransportResponse {
+        private final HttpURLConnection mConnection;
+        private final RequestTiming mTiming;
+        private Semaphore mHostPermits;
+        private BodyStream mBodyStream;
+        private InputStream mThrottledStream;
+        private long mTransferStartTime;
+
+        Response(HttpURLConnection connection, Semaphore hostPermits, RequestTiming timing) {
+            this.mConnection = connection;
+            this.mHostPermits = hostPermits;
+            this.mTiming = timing;
+        }
+
+        @Override
+        public RequestTiming getTiming() {
+            return mTiming;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return mConnection.getResponseMessage();
+        }
+
+        @Override
+        public long getContentLength() {
+            String contentLength = mConnection.getHeaderField("Content-Length");
+            if(contentLength == null) return -1;
+            try {
+                return Long.parseLong(contentLength);
+            }catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if(mThrottledStream != null) return mThrottledStream;
+            mBodyStream = new BodyStream(mConnection, mConnection.getInputStream());
+            mThrottledStream = BandwidthManager.getInstance().throttle(mBodyStream, mTiming.downloadClass);
+            mTransferStartTime = System.nanoTime();
+            return mThrottledStream;
+        }
+
+        @Override
+        public void close() {
+            if(mHostPermits == null) return;
+            try {
+                if(mBodyStream == null) {
+                    // The body of error responses is only available through the error stream
+                    InputStream rawStream = mConnection.getResponseCode() >= 400
+                            ? mConnection.getErrorStream()
+                            : mConnection.getInputStream();
+                    if(rawStream != null) mBodyStream = new BodyStream(mConnection, rawStream);
+                }
+                if(mBodyStream != null) {
+                    // Only the part of the body that was actually read counts as the transfer
+                    if(mTransferStartTime != 0) mTiming.transferNanos = System.nanoTime() - mTransferStartTime;
+                    mTiming.bytes = mBodyStream.getBytesRead();
+                    mBodyStream.close();
+                }
+            }catch (IOException e) {
+                mTiming.failed = true;
+                mConnection.disconnect();
+            }finally {
+                mHostPermits.release();
+                mHostPermits = null;
+                if(mTiming.responseCode >= 400) mTiming.failed = true;
+                DownloadTelemetry.getInstance().record(mTiming);
+            }
+        }
+    }
+
+    /**
+     * Response body stream that reads the rest of the body before closing, so that the
+     * connection can go back into the keep-alive pool.
+     */
+    private static class BodyStream extends FilterInputStream {
+        private final HttpURLConnection mConnection;
+        private boolean mClosed;
+        private long mBytesRead;
+
+        BodyStream(HttpURLConnection connection, InputStream in) {
+            super(in);
+            this.mConnection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = in.read();
+            if(value != -1) mBytesRead++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int length = in.read(b, off, len);
+            if(length > 0) mBytesRead += length;
+            return length;
+        }
+
+        long getBytesRead() {
+            return mBytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(mClosed) return;
+            mClosed = true;
+            byte[] drainBuffer = new byte[4096];
+            int drained = 0;
+            int current;
+            while((current = in.read(drainBuffer)) != -1) {
+                drained += current;
+                if(drained > MAX_DRAIN_SIZE) {
+                    mConnection.disconnect();
+                    return;
+                }
+            }
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the files that are about to be written don't fit into the free space of their
+ * destination. Retrying doesn't help until the user frees up some space.
+ */
+public class InsufficientSpaceException extends IOException {
+    public InsufficientSpaceException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,91 @@
+package net.kdt.pojavlaunch.downloader;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+
+/**
+ * A transport for file: URLs, which makes files from local directories (such as a PeerMirror on
+ * an SD card) go through the same download code as the network ones, including the hash check.
+ * Missing files are reported as 404 responses. Range requests are not supported, so the files are
+ * always copied as a whole.
+ */
+public class LocalFileTransport implements DownloadTransport {
+    private static final LocalFileTransport sInstance = new LocalFileTransport();
+
+    public static LocalFileTransport getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param request the request
+     * @return whether the request has to be executed by this transport
+     */
+    public static boolean isLocal(TransportRequest request) {
+        return "file".equals(request.url.getProtocol());
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        if(!isLocal(request)) throw new IOException("Not a local file: " + request.url);
+        File file;
+        try {
+            file = new File(request.url.toURI());
+        }catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid file URL: " + request.url, e);
+        }
+        return new LocalFileResponse(file, request.method.equals("HEAD"));
+    }
+
+    private static class LocalFileResponse extends TransportResponse {
+        private final File mFile;
+        private final boolean mExists;
+        private final boolean mHeadOnly;
+        private InputStream mInputStream;
+
+        LocalFileResponse(File file, boolean headOnly) {
+            this.mFile = file;
+            this.mExists = file.isFile() && file.canRead();
+            this.mHeadOnly = headOnly;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mExists ? 200 : 404;
+        }
+
+        @Override
+        public String getResponseMessage() {
+            return mExists ? "OK" : "Not Found";
+        }
+
+        @Override
+        public long getContentLength() {
+            return mExists ? mFile.length() : -1;
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            if(mExists && name.equalsIgnoreCase("Content-Length")) return Long.toString(mFile.length());
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if(mInputStream != null) return mInputStream;
+            if(!mExists || mHeadOnly) throw new IOException("No response body");
+            mInputStream = new FileInputStream(mFile);
+            return mInputStream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(mInputStream != null) mInputStream.close();
+        }
+    }
+}
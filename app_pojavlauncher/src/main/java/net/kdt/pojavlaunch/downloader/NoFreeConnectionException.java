@@ -0,0 +1,13 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request with a connection wait limit found all connections to its host busy for
+ * longer than that. The host itself is fine, so this doesn't count as a failure of the host.
+ */
+public class NoFreeConnectionException extends IOException {
+    public NoFreeConnectionException(String hostKey, long waitMs) {
+        super("No free connection to " + hostKey + " after waiting " + waitMs + " ms");
+    }
+}
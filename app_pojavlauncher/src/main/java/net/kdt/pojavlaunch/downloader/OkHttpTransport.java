@@ -0,0 +1,375 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.http2.StreamResetException;
+
+/**
+ * A transport based on OkHttp, which can talk HTTP/2 to the servers that support it. HTTP/2 runs all
+ * requests to a host as streams over a single connection, so the thousands of tiny asset downloads
+ * don't have to wait for a free connection or do a handshake each.
+ * Servers that don't support HTTP/2 are spoken to over HTTP/1.1, with the same per-host connection
+ * limit as the HttpURLConnectionTransport. If a host's HTTP/2 implementation turns out to be broken
+ * (a protocol error or a reset stream, either before the response or while reading its body), the
+ * host is moved to HTTP/1.1 for the rest of the session. The failed request itself is not repeated
+ * here, that is left to the caller's retry policy.
+ */
+public class OkHttpTransport implements DownloadTransport {
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+    // Same as in HttpURLConnectionTransport. HTTP/2 streams are cancelled instead, which is cheap.
+    private static final int MAX_DRAIN_SIZE = 65536;
+
+    private final OkHttpClient mClient;
+    private final OkHttpClient mHttp1Client;
+    private final String mUserAgent;
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+    private final Set<String> mHttp2Hosts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<String> mHttp1OnlyHosts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public OkHttpTransport(String userAgent) {
+        this(userAgent, new OkHttpClient.Builder());
+    }
+
+    // Package-private for the tests, which need to trust their own server
+    OkHttpTransport(String userAgent, OkHttpClient.Builder clientBuilder) {
+        this.mUserAgent = userAgent;
+        mClient = clientBuilder
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
+                .readTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS, TimeUnit.MILLISECONDS))
+                .eventListenerFactory(call -> new TimingListener(call.request().tag(RequestTiming.class)))
+                .build();
+        // Shares the connection pool with the main client
+        mHttp1Client = mClient.newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .build();
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        String hostKey = request.getHostKey();
+        boolean http1Only = mHttp1OnlyHosts.contains(hostKey);
+        try {
+            return execute(request, hostKey, http1Only);
+        }catch (IOException e) {
+            // The caller's retry policy repeats the request, which then goes over HTTP/1.1
+            if(!http1Only && isHttp2ProtocolError(e, hostKey)) demoteToHttp1(hostKey, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @param e a failed request or response body read
+     * @param hostKey the host of the request
+     * @return true if the failure means that the host's HTTP/2 implementation can't be trusted
+     */
+    private boolean isHttp2ProtocolError(IOException e, String hostKey) {
+        if(e instanceof StreamResetException) return true;
+        return e instanceof ProtocolException && mHttp2Hosts.contains(hostKey);
+    }
+
+    private void demoteToHttp1(String hostKey, IOException e) {
+        if(!mHttp1OnlyHosts.add(hostKey)) return;
+        mHttp2Hosts.remove(hostKey);
+        Log.w("OkHttpTransport", "HTTP/2 protocol error from "+hostKey+", using HTTP/1.1 from now on", e);
+    }
+
+    // Package-private for the tests
+    boolean isHttp1Only(String hostKey) {
+        return mHttp1OnlyHosts.contains(hostKey);
+    }
+
+    // Package-private for the tests
+    boolean isHttp2(String hostKey) {
+        return mHttp2Hosts.contains(hostKey);
+    }
+
+    private TransportResponse execute(TransportRequest request, String hostKey, boolean http1Only) throws IOException {
+        // Multiplexed hosts don't need a connection limit, as all requests share one connection
+        Semaphore hostPermits = mHttp2Hosts.contains(hostKey) ? null : getHostPermits(hostKey);
+        if(hostPermits != null) HttpURLConnectionTransport.acquirePermit(hostPermits, request);
+        RequestTiming timing = new RequestTiming(hostKey, request.priority);
+        try {
+            OkHttpClient client = http1Only ? mHttp1Client : mClient;
+            Response response = client.newCall(buildRequest(request, timing)).execute();
+            timing.responseCode = response.code();
+            if(response.protocol() == Protocol.HTTP_2) {
+                mHttp2Hosts.add(hostKey);
+                // Give the permit back right away, the next requests will skip the limit
+                if(hostPermits != null) hostPermits.release();
+                hostPermits = null;
+            }
+            return new OkHttpResponse(this, response, hostPermits, timing);
+        }catch (IOException | RuntimeException e) {
+            if(hostPermits != null) hostPermits.release();
+            timing.failed = true;
+            DownloadTelemetry.getInstance().record(timing);
+            throw e;
+        }
+    }
+
+    private Request buildRequest(TransportRequest request, RequestTiming timing) {
+        Request.Builder builder = new Request.Builder()
+                .url(request.url)
+                .header("User-Agent", mUserAgent)
+                .tag(RequestTiming.class, timing);
+        for(Map.Entry<String, String> header : request.headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        RequestBody body = null;
+        if(request.body != null) {
+            String contentType = request.headers.get("Content-Type");
+            body = RequestBody.create(contentType != null ? MediaType.parse(contentType) : null, request.body);
+        }
+        return builder.method(request.method, body).build();
+    }
+
+    private Semaphore getHostPermits(String hostKey) {
+        Semaphore permits = mHostPermits.get(hostKey);
+        if(permits != null) return permits;
+        permits = new Semaphore(HttpURLConnectionTransport.MAX_CONNECTIONS_PER_HOST, true);
+        Semaphore existingPermits = mHostPermits.putIfAbsent(hostKey, permits);
+        return existingPermits != null ? existingPermits : permits;
+    }
+
+    /**
+     * Fills in the DNS, connection, TLS and first byte times of a RequestTiming.
+     */
+    private static class TimingListener extends EventListener {
+        @Nullable private final RequestTiming mTiming;
+        private long mDnsStart, mConnectStart, mSecureConnectStart, mRequestStart;
+
+        TimingListener(@Nullable RequestTiming timing) {
+            this.mTiming = timing;
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            mDnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            if(mTiming != null) mTiming.dnsNanos = System.nanoTime() - mDnsStart;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            mConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            mSecureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, @Nullable Handshake handshake) {
+            if(mTiming != null) mTiming.tlsNanos = System.nanoTime() - mSecureConnectStart;
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, @Nullable Protocol protocol) {
+            if(mTiming == null) return;
+            // The handshake happens between connectStart() and connectEnd()
+            mTiming.connectNanos = System.nanoTime() - mConnectStart - Math.max(mTiming.tlsNanos, 0);
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            mRequestStart = System.nanoTime();
+            // No connectStart() before this means that a pooled connection was reused
+            if(mTiming != null && mTiming.connectNanos == -1) mTiming.connectNanos = 0;
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            if(mTiming != null) mTiming.firstByteNanos = System.nanoTime() - mRequestStart;
+        }
+    }
+
+    private static class OkHttpResponse extends TransportResponse {
+        private final OkHttpTransport mTransport;
+        private final Response mResponse;
+        private final RequestTiming mTiming;
+        private Semaphore mHostPermits;
+        private BodyStream mBodyStream;
+        private InputStream mThrottledStream;
+        private long mTransferStartTime;
+        private boolean mClosed;
+
+        OkHttpResponse(OkHttpTransport transport, Response response, @Nullable Semaphore hostPermits, RequestTiming timing) {
+            this.mTransport = transport;
+            this.mResponse = response;
+            this.mHostPermits = hostPermits;
+            this.mTiming = timing;
+        }
+
+        @Override
+        public RequestTiming getTiming() {
+            return mTiming;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponse.code();
+        }
+
+        @Override
+        public String getResponseMessage() {
+            return mResponse.message();
+        }
+
+        @Override
+        public long getContentLength() {
+            ResponseBody body = mResponse.body();
+            return body != null ? body.contentLength() : -1;
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            return mResponse.header(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if(mThrottledStream != null) return mThrottledStream;
+            ResponseBody body = mResponse.body();
+            if(body == null) throw new IOException("Response has no body");
+            boolean http2 = mResponse.protocol() == Protocol.HTTP_2;
+            // A stream reset in the middle of the body is the usual way for a broken HTTP/2 server to fail
+            mBodyStream = new BodyStream(body.byteStream(), !http2, http2 ? mTransport : null, mTiming.hostKey);
+            mThrottledStream = BandwidthManager.getInstance().throttle(mBodyStream, mTiming.downloadClass);
+            mTransferStartTime = System.nanoTime();
+            return mThrottledStream;
+        }
+
+        @Override
+        public void close() {
+            if(mClosed) return;
+            mClosed = true;
+            try {
+                if(mBodyStream != null) {
+                    if(mTransferStartTime != 0) mTiming.transferNanos = System.nanoTime() - mTransferStartTime;
+                    mTiming.bytes = mBodyStream.getBytesRead();
+                    mBodyStream.close();
+                }
+            }catch (IOException e) {
+                mTiming.failed = true;
+            }finally {
+                mResponse.close();
+                if(mHostPermits != null) mHostPermits.release();
+                mHostPermits = null;
+                if(mTiming.responseCode >= 400) mTiming.failed = true;
+                DownloadTelemetry.getInstance().record(mTiming);
+            }
+        }
+    }
+
+    /**
+     * Response body stream that counts the bytes read. For HTTP/1.1 it reads the rest of a short body
+     * before closing, so that the connection can be reused. For HTTP/2 it reports protocol errors to
+     * the transport.
+     */
+    private static class BodyStream extends FilterInputStream {
+        private final boolean mDrainOnClose;
+        @Nullable private final OkHttpTransport mHttp2Transport;
+        private final String mHostKey;
+        private boolean mClosed;
+        private long mBytesRead;
+
+        BodyStream(InputStream in, boolean drainOnClose, @Nullable OkHttpTransport http2Transport, String hostKey) {
+            super(in);
+            this.mDrainOnClose = drainOnClose;
+            this.mHttp2Transport = http2Transport;
+            this.mHostKey = hostKey;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int value = in.read();
+                if(value != -1) mBytesRead++;
+                return value;
+            }catch (IOException e) {
+                throw checkProtocolError(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int length = in.read(b, off, len);
+                if(length > 0) mBytesRead += length;
+                return length;
+            }catch (IOException e) {
+                throw checkProtocolError(e);
+            }
+        }
+
+        private IOException checkProtocolError(IOException e) {
+            // The download fails either way, but its retry will go over HTTP/1.1
+            if(mHttp2Transport != null && mHttp2Transport.isHttp2ProtocolError(e, mHostKey)) {
+                mHttp2Transport.demoteToHttp1(mHostKey, e);
+            }
+            return e;
+        }
+
+        long getBytesRead() {
+            return mBytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(mClosed) return;
+            mClosed = true;
+            try {
+                if(!mDrainOnClose) return;
+                byte[] drainBuffer = new byte[4096];
+                int drained = 0;
+                int current;
+                while((current = in.read(drainBuffer)) != -1) {
+                    drained += current;
+                    // Closing without draining makes OkHttp drop the connection
+                    if(drained > MAX_DRAIN_SIZE) return;
+                }
+            }finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps track of a download that is being written into a ".part" file next to its destination.
+ * The validators (ETag/Last-Modified) of the response are stored in a ".part.info" file, which allows
+ * an interrupted download to be continued with a Range request later, even after the launcher restarts.
+ * The destination file is only replaced once the download has finished.
+ */
+public class PartialDownload {
+    private static final String PART_SUFFIX = ".part";
+    private static final String INFO_SUFFIX = ".part.info";
+
+    private final File mTargetFile;
+    private final File mPartFile;
+    private final File mInfoFile;
+    private String mETag;
+    private String mLastModified;
+
+    public PartialDownload(File targetFile) {
+        this.mTargetFile = targetFile;
+        this.mPartFile = new File(targetFile.getParentFile(), targetFile.getName() + PART_SUFFIX);
+        this.mInfoFile = new File(targetFile.getParentFile(), targetFile.getName() + INFO_SUFFIX);
+    }
+
+    public File getPartFile() {
+        return mPartFile;
+    }
+
+    /**
+     * Get the amount of bytes that can be skipped when downloading. Partial files without
+     * validators are never resumed, as there is no way to know whether the remote file has changed.
+     * @return the length of the resumable partial file, or 0 if the download must start over
+     */
+    public long getResumeOffset() {
+        if(!mPartFile.isFile() || !mInfoFile.isFile()) return 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mInfoFile), StandardCharsets.UTF_8))) {
+            mETag = emptyToNull(reader.readLine());
+            mLastModified = emptyToNull(reader.readLine());
+        }catch (IOException e) {
+            Log.w("PartialDownload", "Failed to read the download validators", e);
+            return 0;
+        }
+        if(mETag == null && mLastModified == null) return 0;
+        return mPartFile.length();
+    }
+
+    /**
+     * Add the headers necessary to continue the download at the specified offset. Should only be
+     * called after getResumeOffset() returned a non-zero value.
+     * @param request the request to add the headers to
+     * @param resumeOffset the offset returned by getResumeOffset()
+     */
+    public void addResumeHeaders(TransportRequest request, long resumeOffset) {
+        request.setHeader("Range", "bytes=" + resumeOffset + "-");
+        // If-Range makes the server send the whole file if it was changed since our partial download
+        request.setHeader("If-Range", mETag != null ? mETag : mLastModified);
+    }
+
+    /**
+     * Check whether the server actually honored the Range request.
+     * @param response the server's response
+     * @param resumeOffset the requested offset
+     * @return true if the response body starts at resumeOffset, false if it's the full file
+     */
+    public static boolean isResumedResponse(TransportResponse response, long resumeOffset) throws IOException {
+        if(response.getResponseCode() != 206) return false;
+        String contentRange = response.getHeader("Content-Range");
+        return contentRange != null && contentRange.startsWith("bytes " + resumeOffset + "-");
+    }
+
+    /**
+     * Get the value for an If-Range header that makes sure that a range request returns
+     * a part of the same file as this response.
+     * @param response the server's response
+     * @return the strong ETag or the Last-Modified date of the response, or null if there is none
+     */
+    @Nullable
+    public static String getRangeValidator(TransportResponse response) {
+        String eTag = response.getHeader("ETag");
+        if(eTag != null && !eTag.startsWith("W/")) return eTag;
+        return response.getHeader("Last-Modified");
+    }
+
+    /**
+     * Store the validators of a response, so that the download can be resumed if it fails.
+     * If the server doesn't provide any validators, any previous info is removed.
+     * @param response the server's response
+     * @return true if the download can be resumed, which means that the length of the partial file
+     *         must always match the amount of bytes written into it
+     */
+    public boolean saveValidators(TransportResponse response) {
+        String eTag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        // Weak ETags are not allowed in If-Range
+        if(eTag != null && eTag.startsWith("W/")) eTag = null;
+        if(eTag == null && lastModified == null) {
+            deleteInfo();
+            return false;
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(mInfoFile), StandardCharsets.UTF_8)) {
+            writer.write(nullToEmpty(eTag) + "\n" + nullToEmpty(lastModified) + "\n");
+            return true;
+        }catch (IOException e) {
+            Log.w("PartialDownload", "Failed to save the download validators", e);
+            deleteInfo();
+            return false;
+        }
+    }
+
+    /**
+     * Move the finished download into its destination.
+     * @throws IOException if the partial file can't be renamed
+     */
+    public void commit() throws IOException {
+        if(!mPartFile.renameTo(mTargetFile)) {
+            // Some filesystems refuse to rename over an existing file
+            if(!mTargetFile.delete() || !mPartFile.renameTo(mTargetFile))
+                throw new IOException("Failed to move "+mPartFile.getName()+" into place");
+        }
+        deleteInfo();
+    }
+
+    /**
+     * Remove the partial file and its info, causing the next download to start from scratch.
+     */
+    public void discard() {
+        if(mPartFile.exists() && !mPartFile.delete())
+            Log.w("PartialDownload", "Failed to delete "+mPartFile.getName());
+        deleteInfo();
+    }
+
+    private void deleteInfo() {
+        if(mInfoFile.exists() && !mInfoFile.delete())
+            Log.w("PartialDownload", "Failed to delete "+mInfoFile.getName());
+    }
+
+    @Nullable
+    private static String emptyToNull(@Nullable String string) {
+        if(string == null || string.isEmpty()) return null;
+        return string;
+    }
+
+    private static String nullToEmpty(@Nullable String string) {
+        return string == null ? "" : string;
+    }
+}
@@ -0,0 +1,89 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the progress of many download threads for a single thread that displays it.
+ * The download threads publish their progress without locking, and the displaying thread only
+ * wakes up when something has changed (or when the downloads are finished), at most once per
+ * update interval.
+ */
+public class ProgressAggregator {
+    /** Roughly one frame of a 60 Hz display */
+    public static final long DEFAULT_UPDATE_INTERVAL_MS = 16;
+
+    private final StripedCounter mBytes = new StripedCounter();
+    private final StripedCounter mFiles = new StripedCounter();
+    private final AtomicBoolean mChanged = new AtomicBoolean(false);
+    private volatile Thread mWaitingThread;
+    private volatile boolean mFinished;
+    private long mLastUpdateTime = -1;
+
+    public void addBytes(long delta) {
+        if(delta == 0) return;
+        mBytes.add(delta);
+        signalChange();
+    }
+
+    public void addFiles(long delta) {
+        if(delta == 0) return;
+        mFiles.add(delta);
+        signalChange();
+    }
+
+    public long getBytes() {
+        return mBytes.sum();
+    }
+
+    public long getFiles() {
+        return mFiles.sum();
+    }
+
+    /**
+     * Mark the progress as finished, which makes awaitUpdate() return false. Call this when all
+     * downloads have finished, or when one of them has failed.
+     */
+    public void finish() {
+        mFinished = true;
+        LockSupport.unpark(mWaitingThread);
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Wait until the progress changes or finish() is called. Only one thread may wait at a time.
+     * @param minIntervalMs the minimum time between two updates. Changes that happen in between
+     *                      are collected into a single update.
+     * @return true if the progress has changed, false if it is finished
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public boolean awaitUpdate(long minIntervalMs) throws InterruptedException {
+        mWaitingThread = Thread.currentThread();
+        // A signal that comes in between the checks leaves a permit, so park() won't miss it
+        while(!mFinished && !mChanged.get()) {
+            LockSupport.park(this);
+            if(Thread.interrupted()) throw new InterruptedException();
+        }
+        if(mFinished) return false;
+        long sinceLastUpdate = SystemClock.uptimeMillis() - mLastUpdateTime;
+        if(mLastUpdateTime != -1 && sinceLastUpdate < minIntervalMs) {
+            Thread.sleep(minIntervalMs - sinceLastUpdate);
+            if(mFinished) return false;
+        }
+        mChanged.set(false);
+        mLastUpdateTime = SystemClock.uptimeMillis();
+        return true;
+    }
+
+    private void signalChange() {
+        // Only the first change after an update needs to wake up the waiting thread
+        if(mChanged.get() || !mChanged.compareAndSet(false, true)) return;
+        Thread waitingThread = mWaitingThread;
+        if(waitingThread != null) LockSupport.unpark(waitingThread);
+    }
+}
@@ -0,0 +1,50 @@
+package net.kdt.pojavlaunch.downloader;
+
+/**
+ * The time spent in each phase of a single request, filled in by the transport and by
+ * the code that writes the response to disk. Durations that were not measured are -1.
+ */
+public class RequestTiming {
+    public final String hostKey;
+    public final int downloadClass;
+    public int responseCode = -1;
+    public boolean failed;
+    public long bytes;
+    public long dnsNanos = -1;
+    /**
+     * TCP connection, 0 if a kept-alive connection was reused. Includes the TLS handshake when
+     * tlsNanos is -1, as HttpURLConnection doesn't tell the two apart.
+     */
+    public long connectNanos = -1;
+    public long tlsNanos = -1;
+    public long firstByteNanos = -1;
+    public long transferNanos = -1;
+    public long diskNanos = -1;
+    public long hashNanos = -1;
+
+    /**
+     * @param hostKey the host key of the request
+     * @param downloadClass the BandwidthManager priority class of the request. The transports don't
+     *                      know the DownloadMirror class of a request, but its host mostly tells it.
+     */
+    public RequestTiming(String hostKey, int downloadClass) {
+        this.hostKey = hostKey;
+        this.downloadClass = downloadClass;
+    }
+
+    /**
+     * Add to the disk write time, counting from -1 as 0.
+     * @param nanos the time spent writing, in nanoseconds
+     */
+    public void addDiskTime(long nanos) {
+        diskNanos = Math.max(diskNanos, 0) + nanos;
+    }
+
+    /**
+     * Add to the hashing time, counting from -1 as 0.
+     * @param nanos the time spent hashing, in nanoseconds
+     */
+    public void addHashTime(long nanos) {
+        hashNanos = Math.max(hashNanos, 0) + nanos;
+    }
+}
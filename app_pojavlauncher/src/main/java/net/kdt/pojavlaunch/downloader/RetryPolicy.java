@@ -0,0 +1,103 @@
+package net.kdt.pojavlaunch.downloader;
+
+import androidx.annotation.Nullable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * Decides whether a failed download should be retried and how long to wait before that.
+ * The delay grows exponentially with the attempt count, and a random part of it is used
+ * ("full jitter") so that the threads that failed at the same time don't retry at the same time.
+ * Delays requested by the server with Retry-After or by the CircuitBreaker are respected.
+ */
+public class RetryPolicy {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 250, 16000);
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param maxAttempts the maximum amount of attempts, including the first one
+     * @param baseDelayMs the upper bound of the delay after the first attempt
+     * @param maxDelayMs the upper bound of any delay
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        this.mMaxAttempts = maxAttempts;
+        this.mBaseDelayMs = baseDelayMs;
+        this.mMaxDelayMs = maxDelayMs;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Check whether another attempt should be made.
+     * @param exception the exception of the failed attempt, or null if the attempt failed without one
+     *                  (for example, if the downloaded file did not pass verification)
+     * @param attempts the amount of attempts made so far
+     * @return true if the download should be retried
+     */
+    public boolean canRetry(@Nullable IOException exception, int attempts) {
+        if(attempts >= mMaxAttempts) return false;
+        exception = unwrap(exception);
+        if(exception == null) return true;
+        if(exception instanceof FileNotFoundException || exception instanceof InsufficientSpaceException) return false;
+        // SocketTimeoutException is an InterruptedIOException, but has nothing to do with interrupts
+        if(exception instanceof InterruptedIOException && !(exception instanceof SocketTimeoutException)) return false;
+        if(exception instanceof HttpStatusException) {
+            HttpStatusException statusException = (HttpStatusException) exception;
+            if(!statusException.isRetryable()) return false;
+            // Don't wait for ages if the server wants us to come back much later
+            return statusException.retryAfterMs <= mMaxDelayMs * 4;
+        }
+        return true;
+    }
+
+    /**
+     * Wait before the next attempt.
+     * @param exception the exception of the failed attempt, or null
+     * @param attempts the amount of attempts made so far
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void awaitRetry(@Nullable IOException exception, int attempts) throws InterruptedIOException {
+        try {
+            Thread.sleep(getDelay(exception, attempts));
+        }catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private long getDelay(@Nullable IOException exception, int attempts) {
+        exception = unwrap(exception);
+        if(exception instanceof HttpStatusException && ((HttpStatusException) exception).retryAfterMs >= 0)
+            return ((HttpStatusException) exception).retryAfterMs;
+        if(exception instanceof CircuitOpenException)
+            return Math.min(((CircuitOpenException) exception).remainingMs, mMaxDelayMs);
+        long maxDelay = Math.min(mBaseDelayMs << Math.min(attempts - 1, 16), mMaxDelayMs);
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * maxDelay);
+        }
+    }
+
+    /**
+     * Get the actual cause of a failure that was wrapped into a plain IOException
+     * (for example by DownloadUtils.download()).
+     * @param exception the exception, may be null
+     * @return the innermost exception that is more specific than a plain IOException
+     */
+    @Nullable
+    public static IOException unwrap(@Nullable IOException exception) {
+        while(exception != null && exception.getClass() == IOException.class
+                && exception.getCause() instanceof IOException) {
+            exception = (IOException) exception.getCause();
+        }
+        return exception;
+    }
+}
@@ -0,0 +1,69 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A download task queued in the DownloadScheduler.
+ */
+class ScheduledDownload implements Runnable {
+    private static final AtomicLong sSequenceCounter = new AtomicLong();
+    final DownloadBatch batch;
+    final String hostKey;
+    final long size;
+    final long sequence;
+    private final Runnable[] mTasks;
+    private Future<?> mFuture;
+
+    ScheduledDownload(DownloadBatch batch, String hostKey, long size, Runnable... tasks) {
+        this.batch = batch;
+        this.hostKey = hostKey;
+        this.size = size;
+        this.sequence = sSequenceCounter.getAndIncrement();
+        this.mTasks = tasks;
+    }
+
+    /**
+     * @return the amount of download tasks grouped in this scheduler work unit
+     */
+    int getTaskCount() {
+        return mTasks.length;
+    }
+
+    void start(ExecutorService executorService) {
+        synchronized (this) {
+            mFuture = executorService.submit(this);
+        }
+    }
+
+    synchronized void cancel() {
+        if(mFuture != null) mFuture.cancel(true);
+    }
+
+    @Override
+    public void run() {
+        batch.onDownloadStarted(this);
+        long startTime = System.nanoTime();
+        try {
+            for(Runnable task : mTasks) {
+                if(batch.isCancelled()) break;
+                runTask(task);
+            }
+        }finally {
+            batch.scheduler.onDownloadFinished(this, System.nanoTime() - startTime);
+            batch.onDownloadFinished(this);
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        }catch (RuntimeException e) {
+            Log.e("ScheduledDownload", "Download task crashed", e);
+            batch.onDownloadCrashed(e);
+        }
+    }
+}
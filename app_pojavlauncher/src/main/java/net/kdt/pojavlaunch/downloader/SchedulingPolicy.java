@@ -0,0 +1,109 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Decides in which order the pending downloads of a host are started.
+ * Set with DownloadScheduler.setSchedulingPolicy(), mainly for comparing the policies against each other.
+ */
+public abstract class SchedulingPolicy {
+    /** Start the downloads in the order they were submitted in. */
+    public static final SchedulingPolicy FIFO = new SchedulingPolicy() {
+        @Override
+        PendingQueue createQueue() {
+            return new FifoQueue();
+        }
+    };
+
+    /**
+     * Start the largest downloads first, so that they overlap with the many small ones
+     * instead of becoming the long tail of the whole batch.
+     */
+    public static final SchedulingPolicy LARGEST_FIRST = new SchedulingPolicy() {
+        @Override
+        PendingQueue createQueue() {
+            return new SizeOrderedQueue(false);
+        }
+    };
+
+    /** Alternate between the largest and the smallest pending downloads. */
+    public static final SchedulingPolicy INTERLEAVED = new SchedulingPolicy() {
+        @Override
+        PendingQueue createQueue() {
+            return new SizeOrderedQueue(true);
+        }
+    };
+
+    abstract PendingQueue createQueue();
+
+    interface PendingQueue extends Iterable<ScheduledDownload> {
+        void add(ScheduledDownload download);
+        ScheduledDownload poll();
+        boolean isEmpty();
+    }
+
+    private static class FifoQueue implements PendingQueue {
+        private final ArrayDeque<ScheduledDownload> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void add(ScheduledDownload download) {
+            mQueue.add(download);
+        }
+
+        @Override
+        public ScheduledDownload poll() {
+            return mQueue.poll();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mQueue.isEmpty();
+        }
+
+        @Override
+        public Iterator<ScheduledDownload> iterator() {
+            return mQueue.iterator();
+        }
+    }
+
+    private static class SizeOrderedQueue implements PendingQueue {
+        // Ties are broken by the submission order, which also keeps equal-sized downloads distinct
+        private static final Comparator<ScheduledDownload> SIZE_ORDER = (a, b) -> {
+            int sizeComparison = Long.compare(a.size, b.size);
+            if(sizeComparison != 0) return sizeComparison;
+            return Long.compare(b.sequence, a.sequence);
+        };
+        private final TreeSet<ScheduledDownload> mQueue = new TreeSet<>(SIZE_ORDER);
+        private final boolean mInterleave;
+        private boolean mTakeSmallest;
+
+        SizeOrderedQueue(boolean interleave) {
+            this.mInterleave = interleave;
+        }
+
+        @Override
+        public void add(ScheduledDownload download) {
+            mQueue.add(download);
+        }
+
+        @Override
+        public ScheduledDownload poll() {
+            if(!mInterleave) return mQueue.pollLast();
+            mTakeSmallest = !mTakeSmallest;
+            return mTakeSmallest ? mQueue.pollFirst() : mQueue.pollLast();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mQueue.isEmpty();
+        }
+
+        @Override
+        public Iterator<ScheduledDownload> iterator() {
+            return mQueue.iterator();
+        }
+    }
+}
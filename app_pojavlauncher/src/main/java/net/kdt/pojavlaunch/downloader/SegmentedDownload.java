@@ -0,0 +1,222 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.util.Log;
+
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.utils.DownloadUtils;
+import net.kdt.pojavlaunch.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a large file over several connections at once. Every connection fetches its own
+ * byte range and writes it into its place in a preallocated file. The first segment is read from
+ * the response that started the download, so if the server turns out to ignore range requests,
+ * that response is simply read to the end instead. The same happens when the other connections
+ * can't be made: the host has no free connection (the first segment already holds one, and other
+ * downloads may hold the rest), its circuit is open, or the segment responses take too long.
+ */
+public class SegmentedDownload {
+    public static final int MAX_SEGMENTS = 4;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int SEGMENT_BUFFER_SIZE = 65536;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+    // How long a segment waits for a free connection before the download goes on as a single stream
+    private static final long SEGMENT_CONNECTION_WAIT_MS = 2000;
+    // How long the first segment waits for the responses of the other segments once it's done
+    private static final long SEGMENT_RESPONSE_TIMEOUT_MS = 15000;
+    // Separate from the scheduler's threads, since the download that waits for the segments runs on one of them
+    private static final ThreadPoolExecutor sSegmentExecutor;
+    static {
+        sSegmentExecutor = new ThreadPoolExecutor(8, 8, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        sSegmentExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final URL mUrl;
+    private final int mPriority;
+    private final File mOutputFile;
+    private final long mLength;
+    private final String mRangeValidator;
+    private final AtomicLong mDownloadedBytes = new AtomicLong();
+    private CountDownLatch mSegmentResponses;
+    private volatile boolean mRangesRefused;
+    private volatile boolean mSegmentsUnavailable;
+    private volatile boolean mSegmentsStopped;
+
+    /**
+     * Check whether a download can be split up.
+     * @param response the response to the initial, non-range request
+     * @param threshold the minimum size of the file
+     * @return whether the file is large enough and the server accepts range requests for it
+     */
+    public static boolean canSegment(TransportResponse response, long threshold) throws IOException {
+        long length = response.getContentLength();
+        if(response.getResponseCode() != 200 || length < threshold || length < MIN_SEGMENT_SIZE * 2) return false;
+        if(!"bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"))) return false;
+        // Without a validator, the segments might come from different versions of the file
+        return PartialDownload.getRangeValidator(response) != null;
+    }
+
+    /**
+     * @param request the initial request, whose URL and priority are used for the segments
+     * @param outputFile the file to write into
+     * @param response the response to the initial request, for which canSegment() returned true
+     */
+    public SegmentedDownload(TransportRequest request, File outputFile, TransportResponse response) {
+        this.mUrl = request.url;
+        this.mPriority = request.priority;
+        this.mOutputFile = outputFile;
+        this.mLength = response.getContentLength();
+        this.mRangeValidator = PartialDownload.getRangeValidator(response);
+    }
+
+    /**
+     * Download the file. On failure, the output file is left with holes in it and must be deleted.
+     * @param response the response to the initial request, used for the first segment
+     * @param buffer the buffer for the first segment
+     * @param monitor the progress monitor, only called from the current thread
+     * @throws IOException if any segment fails to download
+     */
+    public void run(TransportResponse response, byte[] buffer, Tools.DownloaderFeedback monitor) throws IOException {
+        int segmentCount = (int) Math.min(MAX_SEGMENTS, mLength / MIN_SEGMENT_SIZE);
+        long segmentSize = mLength / segmentCount;
+        List<Future<?>> segmentFutures = new ArrayList<>(segmentCount - 1);
+        mSegmentResponses = new CountDownLatch(segmentCount - 1);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(mOutputFile, "rw")) {
+            // Reserve the space in one go, then make sure the file has its final length even where
+            // reserving space is not supported
+            FileUtils.preallocate(randomAccessFile.getFD(), mLength);
+            randomAccessFile.setLength(mLength);
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            for(int i = 1; i < segmentCount; i++) {
+                long start = segmentSize * i;
+                long end = i == segmentCount - 1 ? mLength : start + segmentSize;
+                segmentFutures.add(sSegmentExecutor.submit(() -> {
+                    downloadSegment(fileChannel, start, end);
+                    return null;
+                }));
+            }
+            InputStream inputStream = response.getInputStream();
+            copyRange(inputStream, fileChannel, 0, segmentSize, buffer, monitor);
+            boolean responsesReceived = awaitSegmentResponses();
+            if(mRangesRefused || mSegmentsUnavailable || !responsesReceived) {
+                Log.i("SegmentedDownload", "Segments of "+mOutputFile.getName()+" are unavailable ("
+                        + (mRangesRefused ? "ranges refused" : mSegmentsUnavailable ? "no connection" : "timed out")
+                        + "), continuing with a single stream");
+                cancelSegments(segmentFutures);
+                copyRange(inputStream, fileChannel, segmentSize, mLength, buffer, monitor);
+            } else {
+                awaitSegments(segmentFutures, monitor);
+            }
+            monitor.updateProgress(DownloadUtils.toProgress(mLength), DownloadUtils.toProgress(mLength));
+        }finally {
+            cancelSegments(segmentFutures);
+        }
+    }
+
+    private void downloadSegment(FileChannel fileChannel, long start, long end) throws IOException {
+        TransportRequest request = new TransportRequest(mUrl).setPriority(mPriority)
+                .setConnectionWait(SEGMENT_CONNECTION_WAIT_MS);
+        request.setHeader("Range", "bytes=" + start + "-" + (end - 1));
+        request.setHeader("If-Range", mRangeValidator);
+        boolean responseReported = false;
+        boolean trial = false;
+        try {
+            trial = CircuitBreaker.getInstance().checkAllowed(request.getHostKey());
+            try (TransportResponse response = DownloadUtils.getTransport().execute(request)) {
+                response.checkSuccess();
+                boolean isRangeResponse = PartialDownload.isResumedResponse(response, start);
+                if(!isRangeResponse) mRangesRefused = true;
+                mSegmentResponses.countDown();
+                responseReported = true;
+                if(!isRangeResponse) return;
+                copyRange(response.getInputStream(), fileChannel, start, end, new byte[SEGMENT_BUFFER_SIZE], null);
+            }
+            CircuitBreaker.getInstance().recordSuccess(request.getHostKey());
+        }catch (NoFreeConnectionException | CircuitOpenException e) {
+            // The first segment reads the rest of the file instead
+            mSegmentsUnavailable = true;
+        }catch (IOException e) {
+            DownloadUtils.reportHostFailure(request, e);
+            throw e;
+        }finally {
+            if(trial) CircuitBreaker.getInstance().recordNeutral(request.getHostKey());
+            // Don't leave the first segment waiting if this one failed early
+            if(!responseReported) mSegmentResponses.countDown();
+        }
+    }
+
+    private void copyRange(InputStream inputStream, FileChannel fileChannel, long start, long end,
+                           byte[] buffer, Tools.DownloaderFeedback monitor) throws IOException {
+        long position = start;
+        while(position < end) {
+            if(Thread.interrupted()) throw new InterruptedIOException("Segment download interrupted");
+            if(monitor == null && mSegmentsStopped) throw new InterruptedIOException("Segment download cancelled");
+            int length = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            if(length == -1) throw new IOException("Segment of "+mOutputFile.getName()+" ended early at "+position);
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+            while(byteBuffer.hasRemaining()) {
+                position += fileChannel.write(byteBuffer, position);
+            }
+            long downloadedBytes = mDownloadedBytes.addAndGet(length);
+            if(monitor != null) monitor.updateProgress(DownloadUtils.toProgress(downloadedBytes), DownloadUtils.toProgress(mLength));
+        }
+    }
+
+    /**
+     * @return true if all segments got their response (or gave up on getting one), false if they
+     *         took too long
+     */
+    private boolean awaitSegmentResponses() throws InterruptedIOException {
+        try {
+            return mSegmentResponses.await(SEGMENT_RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the segments");
+        }
+    }
+
+    private void awaitSegments(List<Future<?>> segmentFutures, Tools.DownloaderFeedback monitor) throws IOException {
+        for(Future<?> segmentFuture : segmentFutures) {
+            while(true) {
+                try {
+                    segmentFuture.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    break;
+                }catch (TimeoutException e) {
+                    monitor.updateProgress(DownloadUtils.toProgress(mDownloadedBytes.get()), DownloadUtils.toProgress(mLength));
+                }catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for the segments");
+                }catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if(cause instanceof IOException) throw (IOException) cause;
+                    throw new IOException("Segment download failed", cause);
+                }
+            }
+        }
+        // A segment may have finished without data if the server refused the range after all
+        if(mRangesRefused) throw new IOException("Server refused range requests for "+mOutputFile.getName());
+    }
+
+    private void cancelSegments(List<Future<?>> segmentFutures) {
+        // Interrupting a thread that writes into the FileChannel would close the channel for everyone,
+        // so the running segments are told to stop instead
+        mSegmentsStopped = true;
+        for(Future<?> segmentFuture : segmentFutures) segmentFuture.cancel(false);
+    }
+}
@@ -0,0 +1,45 @@
+package net.kdt.pojavlaunch.downloader;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without fighting over a single cache line.
+ * Each thread adds to one of several cells picked by its ID, and the cells are summed up when
+ * the value is read. Reading is more expensive than adding, so this is meant for counters that
+ * are updated a lot more often than they are read.
+ */
+public class StripedCounter {
+    // Place the cells 64 bytes apart, so that two cells never share a cache line
+    private static final int CELL_SPACING = 8;
+    private final AtomicLongArray mCells;
+    private final int mCellMask;
+
+    public StripedCounter() {
+        int cellCount = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1) * 2 - 1) << 1;
+        cellCount = Math.min(cellCount, 64);
+        mCells = new AtomicLongArray(cellCount * CELL_SPACING);
+        mCellMask = cellCount - 1;
+    }
+
+    public void add(long delta) {
+        mCells.getAndAdd(getCellIndex(), delta);
+    }
+
+    /**
+     * @return the sum of all additions. Not an atomic snapshot if other threads are adding at the same time.
+     */
+    public long sum() {
+        long sum = 0;
+        for(int i = 0; i < mCells.length(); i += CELL_SPACING) {
+            sum += mCells.get(i);
+        }
+        return sum;
+    }
+
+    private int getCellIndex() {
+        long threadId = Thread.currentThread().getId();
+        // Spread the sequential thread IDs across the cells
+        int hash = (int) (threadId * 0x9E3779B97F4A7C15L >>> 32);
+        return (hash & mCellMask) * CELL_SPACING;
+    }
+}
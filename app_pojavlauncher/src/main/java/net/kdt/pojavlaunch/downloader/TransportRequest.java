@@ -0,0 +1,92 @@
+package net.kdt.pojavlaunch.downloader;
+
+import androidx.annotation.Nullable;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single HTTP request to be executed by a DownloadTransport.
+ */
+public class TransportRequest {
+    public final URL url;
+    public final String method;
+    public final Map<String, String> headers = new HashMap<>();
+    @Nullable public final byte[] body;
+    public int priority = BandwidthManager.PRIORITY_INSTALL;
+    public long connectionWaitMs = -1;
+
+    public TransportRequest(String url) throws MalformedURLException {
+        this(new URL(url));
+    }
+
+    public TransportRequest(URL url) {
+        this(url, "GET", null);
+    }
+
+    public TransportRequest(URL url, String method, @Nullable byte[] body) {
+        this.url = url;
+        this.method = method;
+        this.body = body;
+    }
+
+    /**
+     * Set a request header, replacing the previous value if there was one.
+     * @param name the header name
+     * @param value the header value
+     * @return this request
+     */
+    public TransportRequest setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Add all headers from a map to this request.
+     * @param additionalHeaders the header map, may be null
+     * @return this request
+     */
+    public TransportRequest setHeaders(@Nullable Map<String, String> additionalHeaders) {
+        if(additionalHeaders != null) headers.putAll(additionalHeaders);
+        return this;
+    }
+
+    /**
+     * Ask the server to send the response body gzip-compressed. The body must then be read with
+     * TransportResponse.getDecodedInputStream(). Only worth it for text, such as JSON metadata.
+     * @return this request
+     */
+    public TransportRequest acceptCompressed() {
+        return setHeader("Accept-Encoding", "gzip");
+    }
+
+    /**
+     * Set the bandwidth priority of the response body.
+     * @param priority one of the BandwidthManager.PRIORITY_ constants
+     * @return this request
+     */
+    public TransportRequest setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Limit how long the request waits for a free connection to its host. Requests made while another
+     * connection to the same host is being held must use this, or they may wait for each other forever.
+     * @param waitMs the time limit, or -1 to wait as long as it takes
+     * @return this request
+     */
+    public TransportRequest setConnectionWait(long waitMs) {
+        this.connectionWaitMs = waitMs;
+        return this;
+    }
+
+    /**
+     * @return the key used to group connections to the same server
+     */
+    public String getHostKey() {
+        return DownloadScheduler.getHostKey(url);
+    }
+}
@@ -0,0 +1,77 @@
+package net.kdt.pojavlaunch.downloader;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The response to a TransportRequest. Closing the response gives the connection back
+ * to the transport, so it must always be closed, even if the body wasn't read.
+ */
+public abstract class TransportResponse implements Closeable {
+    public abstract int getResponseCode() throws IOException;
+    public abstract String getResponseMessage() throws IOException;
+    /** @return the length of the response body, or -1 if it is unknown */
+    public abstract long getContentLength();
+    @Nullable public abstract String getHeader(String name);
+    public abstract InputStream getInputStream() throws IOException;
+
+    /**
+     * Get the response body, decompressing it while it is read if the server compressed it.
+     * Use this instead of getInputStream() for requests made with TransportRequest.acceptCompressed().
+     * @return the decoded response body
+     * @throws IOException if the body can't be read or the server used an unsupported encoding
+     */
+    public InputStream getDecodedInputStream() throws IOException {
+        String contentEncoding = getHeader("Content-Encoding");
+        if(contentEncoding == null || contentEncoding.equalsIgnoreCase("identity")) return getInputStream();
+        if(contentEncoding.equalsIgnoreCase("gzip")) return new GZIPInputStream(getInputStream(), 8192);
+        throw new IOException("Unsupported content encoding: " + contentEncoding);
+    }
+
+    /**
+     * @return the timing of this request, to which the disk and hash times can be added before closing it,
+     *         or null if the transport doesn't measure them
+     */
+    @Nullable
+    public RequestTiming getTiming() {
+        return null;
+    }
+
+    /**
+     * Check that the server returned a successful response code.
+     * @throws FileNotFoundException if the server returned 404 or 410
+     * @throws HttpStatusException if the server returned any other non-2xx code
+     */
+    public void checkSuccess() throws IOException {
+        int responseCode = getResponseCode();
+        if(responseCode >= 200 && responseCode < 300) return;
+        if(responseCode == 404 || responseCode == 410)
+            throw new FileNotFoundException("Server returned HTTP " + responseCode + ": " + getResponseMessage());
+        long retryAfter = -1;
+        if(responseCode == 429 || responseCode == 503) retryAfter = parseRetryAfter(getHeader("Retry-After"));
+        throw new HttpStatusException(responseCode, getResponseMessage(), retryAfter);
+    }
+
+    private static long parseRetryAfter(@Nullable String retryAfter) {
+        if(retryAfter == null) return -1;
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        }catch (NumberFormatException e) {
+            // Not a number, so it should be a date
+        }
+        try {
+            SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, httpDateFormat.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+        }catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package net.kdt.pojavlaunch.downloader;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import net.kdt.pojavlaunch.Tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk index of files whose hash was already verified, keyed by their absolute path.
+ * Along with the hash, the size, modification time and inode of the file are recorded, which allows
+ * skipping the hash check for files that weren't touched since they were last verified.
+ *
+ * The index is an append-only log of checksummed records, so a crash while writing it can only lose
+ * the last records, which simply causes the affected files to be hashed again. A log with a torn or
+ * corrupted tail is rewritten as soon as it is loaded, so that the new records don't end up behind
+ * the broken ones.
+ */
+public class VerifiedFileIndex {
+    private static final int INDEX_MAGIC = 0x50564649; // "PVFI"
+    private static final int INDEX_VERSION = 1;
+    private static final int FLUSH_INTERVAL = 64;
+    private static VerifiedFileIndex sInstance;
+
+    private final File mIndexFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private DataOutputStream mLogStream;
+    private int mLogRecordCount;
+    private int mUnflushedRecords;
+
+    // Package-private for the tests
+    VerifiedFileIndex(File indexFile) {
+        this.mIndexFile = indexFile;
+        load();
+    }
+
+    public static synchronized VerifiedFileIndex getInstance() {
+        if(sInstance == null) sInstance = new VerifiedFileIndex(new File(Tools.DIR_DATA, "verified_files.idx"));
+        return sInstance;
+    }
+
+    /**
+     * Check whether a file was already verified against a hash and was not modified since.
+     * @param file the file to check
+     * @param hexHash the expected hash of the file
+     * @return true if the file is known to match the hash, false if it must be hashed
+     */
+    public boolean isVerified(File file, String hexHash) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(file.getAbsolutePath());
+        }
+        if(entry == null) return false;
+        Entry currentStat = statFile(file, entry.hash);
+        return currentStat != null && entry.sameStat(currentStat) && Arrays.equals(entry.hash, decodeHex(hexHash));
+    }
+
+    /**
+     * Record that a file matches a hash. Must be called after the file has been verified or
+     * after it was written with a known hash.
+     * @param file the verified file
+     * @param hexHash the hash of the file
+     */
+    public void markVerified(File file, String hexHash) {
+        Entry entry = statFile(file, decodeHex(hexHash));
+        if(entry == null) return;
+        String path = file.getAbsolutePath();
+        synchronized (this) {
+            mEntries.put(path, entry);
+            try {
+                appendRecord(path, entry);
+                if(++mUnflushedRecords >= FLUSH_INTERVAL) flush();
+            }catch (IOException e) {
+                Log.w("VerifiedFileIndex", "Failed to write the index", e);
+                closeLog();
+            }
+        }
+    }
+
+    /**
+     * Write all pending records to the disk.
+     */
+    public synchronized void flush() {
+        if(mLogStream == null) return;
+        try {
+            mLogStream.flush();
+            mUnflushedRecords = 0;
+        }catch (IOException e) {
+            Log.w("VerifiedFileIndex", "Failed to flush the index", e);
+            closeLog();
+        }
+    }
+
+    private static Entry statFile(File file, byte[] hash) {
+        long lastModified = file.lastModified();
+        if(lastModified == 0) return null; // Does not exist or inaccessible
+        long inode = 0;
+        long size;
+        try {
+            StructStat stat = Os.stat(file.getAbsolutePath());
+            inode = stat.st_ino;
+            size = stat.st_size;
+        }catch (ErrnoException e) {
+            size = file.length();
+        }
+        return new Entry(size, lastModified, inode, hash);
+    }
+
+    private void load() {
+        boolean intact = false;
+        if(mIndexFile.isFile()) {
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+                if(inputStream.readInt() == INDEX_MAGIC && inputStream.readInt() == INDEX_VERSION) {
+                    intact = readRecords(inputStream);
+                }
+            }catch (IOException e) {
+                Log.w("VerifiedFileIndex", "Failed to read the index, some records may be lost", e);
+            }
+            if(!intact) Log.w("VerifiedFileIndex", "The index is damaged, rewriting it with "+mEntries.size()+" records");
+        }
+        // Rewrite the log if it is missing or broken (records appended after a broken one could never
+        // be read back), or if it has too many outdated records
+        if(!intact || mLogRecordCount == 0 || mLogRecordCount > mEntries.size() * 2 + 1024) {
+            // If a broken log can't be rewritten, start a new one instead of appending after the damage
+            if(!compact() && !intact && mIndexFile.exists() && !mIndexFile.delete()) {
+                Log.w("VerifiedFileIndex", "Failed to delete the damaged index");
+            }
+        }
+    }
+
+    /**
+     * @return true if all records were read up to the end of the log, false if the log ends with a
+     *         torn or corrupted record
+     */
+    private boolean readRecords(DataInputStream inputStream) throws IOException {
+        CRC32 crc32 = new CRC32();
+        while(true) {
+            byte[] record;
+            try {
+                // The log may only end on a record boundary
+                int firstByte = inputStream.read();
+                if(firstByte == -1) return true;
+                int recordLength = (firstByte << 24) | (inputStream.readUnsignedByte() << 16)
+                        | (inputStream.readUnsignedByte() << 8) | inputStream.readUnsignedByte();
+                if(recordLength <= 0 || recordLength > 65536) return false;
+                record = new byte[recordLength];
+                inputStream.readFully(record);
+                crc32.reset();
+                crc32.update(record, 0, recordLength);
+                if(inputStream.readInt() != (int) crc32.getValue()) return false;
+            }catch (EOFException e) {
+                // Truncated record, caused by a crash during a write
+                return false;
+            }
+            DataInputStream recordStream = new DataInputStream(new ByteArrayInputStream(record));
+            String path = recordStream.readUTF();
+            long size = recordStream.readLong();
+            long lastModified = recordStream.readLong();
+            long inode = recordStream.readLong();
+            byte[] hash = new byte[recordStream.readUnsignedByte()];
+            recordStream.readFully(hash);
+            mEntries.put(path, new Entry(size, lastModified, inode, hash));
+            mLogRecordCount++;
+        }
+    }
+
+    private boolean compact() {
+        closeLog();
+        File tempFile = new File(mIndexFile.getAbsolutePath() + ".tmp");
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+                 DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream))) {
+                outputStream.writeInt(INDEX_MAGIC);
+                outputStream.writeInt(INDEX_VERSION);
+                for(Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                    writeRecord(outputStream, entry.getKey(), entry.getValue());
+                }
+                outputStream.flush();
+                fileOutputStream.getFD().sync();
+            }
+            if(!tempFile.renameTo(mIndexFile)) throw new IOException("Failed to replace the index");
+            mLogRecordCount = mEntries.size();
+            return true;
+        }catch (IOException e) {
+            Log.w("VerifiedFileIndex", "Failed to compact the index", e);
+            if(!tempFile.delete()) Log.w("VerifiedFileIndex", "Failed to delete the temporary index");
+            return false;
+        }
+    }
+
+    // Package-private for the tests
+    void appendRecord(String path, Entry entry) throws IOException {
+        if(mLogStream == null) {
+            boolean exists = mIndexFile.isFile();
+            mLogStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mIndexFile, true)));
+            if(!exists) {
+                mLogStream.writeInt(INDEX_MAGIC);
+                mLogStream.writeInt(INDEX_VERSION);
+            }
+        }
+        writeRecord(mLogStream, path, entry);
+        mLogRecordCount++;
+    }
+
+    private static void writeRecord(DataOutputStream outputStream, String path, Entry entry) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(path.length() + 96);
+        DataOutputStream recordStream = new DataOutputStream(recordBytes);
+        recordStream.writeUTF(path);
+        recordStream.writeLong(entry.size);
+        recordStream.writeLong(entry.lastModified);
+        recordStream.writeLong(entry.inode);
+        recordStream.writeByte(entry.hash.length);
+        recordStream.write(entry.hash);
+        byte[] record = recordBytes.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, 0, record.length);
+        outputStream.writeInt(record.length);
+        outputStream.write(record);
+        outputStream.writeInt((int) crc32.getValue());
+    }
+
+    private void closeLog() {
+        if(mLogStream == null) return;
+        try {
+            mLogStream.close();
+        }catch (IOException e) {
+            Log.w("VerifiedFileIndex", "Failed to close the index", e);
+        }
+        mLogStream = null;
+    }
+
+    private static byte[] decodeHex(String hex) {
+        int length = hex.length() / 2;
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+                    | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return bytes;
+    }
+
+    // Package-private for the tests
+    synchronized boolean hasEntry(String path) {
+        return mEntries.containsKey(path);
+    }
+
+    static class Entry {
+        final long size;
+        final long lastModified;
+        final long inode;
+        final byte[] hash;
+
+        Entry(long size, long lastModified, long inode, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+            this.hash = hash;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && lastModified == other.lastModified && inode == other.inode;
+        }
+    }
+}
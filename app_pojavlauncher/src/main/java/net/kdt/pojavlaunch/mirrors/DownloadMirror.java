@@ -1,33 +1,33 @@
 package net.kdt.pojavlaunch.mirrors;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import net.kdt.pojavlaunch.Tools;
-import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+import net.kdt.pojavlaunch.downloader.CircuitOpenException;
+import net.kdt.pojavlaunch.downloader.InsufficientSpaceException;
+import net.kdt.pojavlaunch.downloader.RetryPolicy;
 import net.kdt.pojavlaunch.utils.DownloadUtils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 
 public class DownloadMirror {
     public static final int DOWNLOAD_CLASS_LIBRARIES = 0;
     public static final int DOWNLOAD_CLASS_METADATA = 1;
     public static final int DOWNLOAD_CLASS_ASSETS = 2;
 
-    private static final String URL_PROTOCOL_TAIL = "://";
-    private static final String[] MIRROR_BMCLAPI = {
-            "https://bmclapi2.bangbang93.com/maven",
-            "https://bmclapi2.bangbang93.com",
-            "https://bmclapi2.bangbang93.com/assets"
-    };
+    // Only small downloads are fast enough for their duration to say something about the latency
+    private static final long LATENCY_SAMPLE_MAX_SIZE = 65536;
 
     /**
-     * Download a file with the current mirror. If the file is missing on the mirror,
-     * fall back to the official source.
+     * Download a file with the best available mirror. If the download fails or the
+     * file is missing on the mirror, fall back to the next one.
      * @param downloadClass Class of the download. Can either be DOWNLOAD_CLASS_LIBRARIES,
      *                      DOWNLOAD_CLASS_METADATA or DOWNLOAD_CLASS_ASSETS
      * @param urlInput The original (Mojang) URL for the download
@@ -37,82 +37,148 @@ public class DownloadMirror {
      */
     public static void downloadFileMirrored(int downloadClass, String urlInput, File outputFile,
                                             @Nullable byte[] buffer, Tools.DownloaderFeedback monitor) throws IOException {
-        try {
-            DownloadUtils.downloadFileMonitored(getMirrorMapping(downloadClass, urlInput),
-                    outputFile, buffer, monitor);
-            return;
-        }catch (FileNotFoundException e) {
-            Log.w("DownloadMirror", "Cannot find the file on the mirror", e);
-            Log.i("DownloadMirror", "Failling back to default source");
-        }
-        DownloadUtils.downloadFileMonitored(urlInput, outputFile, buffer, monitor);
+        downloadFileMirrored(downloadClass, urlInput, outputFile, null, -1, buffer, monitor);
     }
 
     /**
-     * Download a file with the current mirror. If the file is missing on the mirror,
-     * fall back to the official source.
+     * Download a file with the best available mirror, verifying it while it is being
+     * downloaded. If the download fails or the file is missing on the mirror, fall back to the next one.
+     * @param downloadClass Class of the download. Can either be DOWNLOAD_CLASS_LIBRARIES,
+     *                      DOWNLOAD_CLASS_METADATA or DOWNLOAD_CLASS_ASSETS
+     * @param urlInput The original (Mojang) URL for the download
+     * @param outputFile The output file for the download
+     * @param expectedHash The hash of the file, or null if it should not be verified
+     * @param expectedSize The size of the file, or -1 if unknown
+     * @param buffer The shared buffer
+     * @param monitor The download monitor.
+     */
+    public static void downloadFileMirrored(int downloadClass, String urlInput, File outputFile,
+                                            @Nullable String expectedHash, long expectedSize,
+                                            @Nullable byte[] buffer, Tools.DownloaderFeedback monitor) throws IOException {
+        downloadWithFailover(downloadClass, urlInput, expectedHash, expectedSize, (url) ->
+                DownloadUtils.downloadFileMonitored(url, outputFile, expectedHash, expectedSize, buffer, monitor));
+    }
+
+    /**
+     * Download a file with the best available mirror. If the download fails or the
+     * file is missing on the mirror, fall back to the next one.
      * @param downloadClass Class of the download. Can either be DOWNLOAD_CLASS_LIBRARIES,
      *                      DOWNLOAD_CLASS_METADATA or DOWNLOAD_CLASS_ASSETS
      * @param urlInput The original (Mojang) URL for the download
      * @param outputFile The output file for the download
      */
     public static void downloadFileMirrored(int downloadClass, String urlInput, File outputFile) throws IOException {
-        try {
-            DownloadUtils.downloadFile(getMirrorMapping(downloadClass, urlInput),
-                    outputFile);
-            return;
-        }catch (FileNotFoundException e) {
-            Log.w("DownloadMirror", "Cannot find the file on the mirror", e);
-            Log.i("DownloadMirror", "Failling back to default source");
+        downloadWithFailover(downloadClass, urlInput, null, -1, (url) -> DownloadUtils.downloadFile(url, outputFile));
+    }
+
+    /**
+     * Try to get a file from the peers (other launchers on the local network or local directories).
+     * Used for the downloads that don't come from the official source, like mods.
+     * @param hash The SHA-1 or SHA-512 hash of the file
+     * @param outputFile The output file for the download
+     * @param expectedSize The size of the file, or -1 if unknown
+     * @param buffer The shared buffer
+     * @param monitor The download monitor.
+     * @return true if a peer provided the file, false if the file has to be downloaded from elsewhere
+     * @throws InterruptedIOException if the download was interrupted
+     */
+    public static boolean downloadFromPeers(String hash, File outputFile, long expectedSize,
+                                            @Nullable byte[] buffer, Tools.DownloaderFeedback monitor) throws InterruptedIOException {
+        for(PeerMirror peer : MirrorRegistry.getInstance().getPeers()) {
+            String peerUrl = peer.getMirrorUrl(-1, null, hash);
+            if(peerUrl == null) continue;
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                try {
+                    DownloadUtils.downloadFileMonitored(peerUrl, outputFile, hash, expectedSize, buffer, monitor);
+                }catch (IOException e) {
+                    throw RetryPolicy.unwrap(e);
+                }
+                peer.recordSuccess(isLatencySample(expectedSize) ? SystemClock.elapsedRealtime() - startTime : -1);
+                return true;
+            }catch (FileNotFoundException e) {
+                // The peer just doesn't have it
+            }catch (InterruptedIOException e) {
+                if(!(e instanceof SocketTimeoutException)) throw e;
+                peer.recordFailure();
+            }catch (InsufficientSpaceException e) {
+                // Not the peer's fault, and no other source will do better
+                return false;
+            }catch (IOException e) {
+                Log.w("DownloadMirror", "Download from peer " + peer.name + " failed", e);
+                peer.recordFailure();
+            }
         }
-        DownloadUtils.downloadFile(urlInput, outputFile);
+        return false;
     }
 
     /**
-     * Check if the current download source is a mirror and not an official source.
-     * @return true if the source is a mirror, false otherwise
+     * Check if the downloads may come from a mirror and not from an official source.
+     * @return true if a mirror may be used, false otherwise
      */
     public static boolean isMirrored() {
-        return !LauncherPreferences.PREF_DOWNLOAD_SOURCE.equals("default");
+        return MirrorRegistry.getInstance().hasMirrors();
     }
 
-    private static String[] getMirrorSettings() {
-        switch (LauncherPreferences.PREF_DOWNLOAD_SOURCE) {
-            case "bmclapi": return MIRROR_BMCLAPI;
-            case "default":
-            default:
-                return null;
-        }
+    private static boolean isLatencySample(long expectedSize) {
+        return expectedSize > 0 && expectedSize < LATENCY_SAMPLE_MAX_SIZE;
     }
 
-    private static String getMirrorMapping(int downloadClass, String mojangUrl) throws MalformedURLException{
-        String[] mirrorSettings = getMirrorSettings();
-        if(mirrorSettings == null) return mojangUrl;
-        int urlTail = getBaseUrlTail(mojangUrl);
-        String baseUrl = mojangUrl.substring(0, urlTail);
-        String path = mojangUrl.substring(urlTail);
-        switch(downloadClass) {
-            case DOWNLOAD_CLASS_ASSETS:
-            case DOWNLOAD_CLASS_METADATA:
-                baseUrl = mirrorSettings[downloadClass];
-                break;
-            case DOWNLOAD_CLASS_LIBRARIES:
-                if(!baseUrl.endsWith("libraries.minecraft.net")) break;
-                baseUrl = mirrorSettings[downloadClass];
-                break;
+    private static void downloadWithFailover(int downloadClass, String urlInput, @Nullable String expectedHash,
+                                             long expectedSize, MirrorDownloadFunction downloadFunction) throws IOException {
+        IOException lastException = null;
+        for(Mirror mirror : MirrorRegistry.getInstance().getCandidates(downloadClass)) {
+            String mirrorUrl = mirror.getMirrorUrl(downloadClass, urlInput, expectedHash);
+            if(mirrorUrl == null) continue;
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                try {
+                    downloadFunction.download(mirrorUrl);
+                }catch (IOException e) {
+                    // Plain downloads wrap the actual failure, which is needed to tell the cases apart
+                    throw RetryPolicy.unwrap(e);
+                }
+                mirror.recordSuccess(isLatencySample(expectedSize) ? SystemClock.elapsedRealtime() - startTime : -1);
+                return;
+            }catch (FileNotFoundException e) {
+                // A missing file does not mean that the mirror is unhealthy
+                Log.w("DownloadMirror", "Cannot find the file on mirror " + mirror.name, e);
+                lastException = e;
+            }catch (CircuitOpenException e) {
+                // The failures that opened the circuit were already counted
+                Log.w("DownloadMirror", "Skipping mirror " + mirror.name + ", it keeps failing");
+                lastException = e;
+            }catch (SocketTimeoutException e) {
+                Log.w("DownloadMirror", "Mirror " + mirror.name + " timed out", e);
+                mirror.recordFailure();
+                lastException = e;
+            }catch (InterruptedIOException | InsufficientSpaceException e) {
+                throw e;
+            }catch (DownloadUtils.SHA1VerificationException e) {
+                if(mirror.isOfficial()) {
+                    // Most likely damaged on the way
+                    Log.w("DownloadMirror", "File from the official source failed verification", e);
+                    mirror.recordFailure();
+                }else {
+                    // Not a failure that goes away after a while: the mirror serves altered or outdated files
+                    Log.e("DownloadMirror", "Mirror " + mirror.name + " sent a file that doesn't match its hash, "
+                            + "not using it anymore", e);
+                    mirror.disable();
+                }
+                lastException = e;
+            }catch (IOException e) {
+                // Includes 5xx responses
+                Log.w("DownloadMirror", "Download from mirror " + mirror.name + " failed", e);
+                mirror.recordFailure();
+                lastException = e;
+            }
+            Log.i("DownloadMirror", "Falling back to the next source");
         }
-        return baseUrl + path;
+        if(lastException == null) throw new IOException("No source can serve " + urlInput);
+        throw lastException;
     }
 
-    private static int getBaseUrlTail(String wholeUrl) throws MalformedURLException{
-        int protocolNameEnd = wholeUrl.indexOf(URL_PROTOCOL_TAIL);
-        if(protocolNameEnd == -1)
-            throw new MalformedURLException("No protocol, or non path-based URL");
-        protocolNameEnd += URL_PROTOCOL_TAIL.length();
-        int hostnameEnd = wholeUrl.indexOf('/', protocolNameEnd);
-        if(protocolNameEnd >= wholeUrl.length() || hostnameEnd == protocolNameEnd)
-            throw new MalformedURLException("No hostname");
-        if(hostnameEnd == -1) hostnameEnd = wholeUrl.length();
-        return hostnameEnd;
+    private interface MirrorDownloadFunction {
+        void download(String url) throws IOException;
     }
 }
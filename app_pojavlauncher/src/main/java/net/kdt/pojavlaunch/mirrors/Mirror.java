@@ -0,0 +1,150 @@
+package net.kdt.pojavlaunch.mirrors;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.net.MalformedURLException;
+
+/**
+ * A download source for the game files, with the health information that is used to pick
+ * the best source for each download.
+ */
+public class Mirror {
+    private static final String URL_PROTOCOL_TAIL = "://";
+    private static final double LATENCY_WEIGHT = 0.3;
+    private static final long BASE_COOLDOWN_MS = 5000;
+    private static final long MAX_COOLDOWN_MS = 5 * 60 * 1000;
+    // Used for the mirrors that were never measured, so that they are tried after the known good ones
+    private static final double UNKNOWN_LATENCY_MS = 1000;
+
+    public final String name;
+    private final String[] mBaseUrls;
+    private final boolean mPreferred;
+    private double mLatencyMs = -1;
+    private int mConsecutiveFailures;
+    private long mCooldownEnd;
+    private boolean mDisabled;
+
+    /**
+     * @param name the name of the mirror, used in the logs
+     * @param baseUrls the base URLs that replace the official ones, indexed by the download class.
+     *                 null means that the official URL is used as-is, and a null entry means that
+     *                 the mirror does not serve that download class.
+     * @param preferred whether the user chose this mirror. Preferred mirrors are picked over
+     *                  others with similar latency.
+     */
+    public Mirror(String name, @Nullable String[] baseUrls, boolean preferred) {
+        this.name = name;
+        this.mBaseUrls = baseUrls;
+        this.mPreferred = preferred;
+    }
+
+    /**
+     * @return whether the mirror is the official source, which serves every file
+     */
+    public boolean isOfficial() {
+        return mBaseUrls == null;
+    }
+
+    /**
+     * Get the URL of a file on this mirror.
+     * @param downloadClass the DownloadMirror download class of the file
+     * @param mojangUrl the official URL of the file
+     * @return the URL on this mirror, or null if the mirror does not serve the file
+     * @throws MalformedURLException if the official URL is not path-based
+     */
+    @Nullable
+    public String getMirrorUrl(int downloadClass, String mojangUrl) throws MalformedURLException {
+        if(mBaseUrls == null) return mojangUrl;
+        if(downloadClass < 0 || downloadClass >= mBaseUrls.length) return null;
+        String mirrorBaseUrl = mBaseUrls[downloadClass];
+        if(mirrorBaseUrl == null) return null;
+        int urlTail = getBaseUrlTail(mojangUrl);
+        String baseUrl = mojangUrl.substring(0, urlTail);
+        String path = mojangUrl.substring(urlTail);
+        // Only libraries from the official Maven repository are mirrored
+        if(downloadClass == DownloadMirror.DOWNLOAD_CLASS_LIBRARIES
+                && !baseUrl.endsWith("libraries.minecraft.net")) return null;
+        return mirrorBaseUrl + path;
+    }
+
+    /**
+     * Get the URL of a file on this mirror, for mirrors that can also find files by their hash.
+     * @param downloadClass the DownloadMirror download class of the file
+     * @param mojangUrl the official URL of the file
+     * @param hash the SHA-1 or SHA-512 hash of the file, or null if it is unknown
+     * @return the URL on this mirror, or null if the mirror does not serve the file
+     * @throws MalformedURLException if the official URL is not path-based
+     */
+    @Nullable
+    public String getMirrorUrl(int downloadClass, String mojangUrl, @Nullable String hash) throws MalformedURLException {
+        return getMirrorUrl(downloadClass, mojangUrl);
+    }
+
+    /**
+     * Record a successful request to this mirror.
+     * @param latencyMs the time until the response arrived, or -1 if it was not measured
+     */
+    public synchronized void recordSuccess(long latencyMs) {
+        mConsecutiveFailures = 0;
+        mCooldownEnd = 0;
+        if(latencyMs < 0) return;
+        if(mLatencyMs < 0) mLatencyMs = latencyMs;
+        else mLatencyMs += (latencyMs - mLatencyMs) * LATENCY_WEIGHT;
+    }
+
+    /**
+     * Record a failed request to this mirror. The mirror is avoided for a while, for longer
+     * the more often it fails in a row.
+     */
+    public synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        long cooldown = Math.min(BASE_COOLDOWN_MS << Math.min(mConsecutiveFailures - 1, 16), MAX_COOLDOWN_MS);
+        mCooldownEnd = SystemClock.elapsedRealtime() + cooldown;
+    }
+
+    /**
+     * Stop using this mirror for the rest of the session, because it sent a file that doesn't
+     * match its hash.
+     */
+    public synchronized void disable() {
+        mDisabled = true;
+    }
+
+    /**
+     * @return whether the mirror was disabled for sending a wrong file
+     */
+    public synchronized boolean isDisabled() {
+        return mDisabled;
+    }
+
+    /**
+     * @return whether the mirror is not being avoided because of recent failures
+     */
+    public synchronized boolean isHealthy() {
+        return SystemClock.elapsedRealtime() >= mCooldownEnd;
+    }
+
+    /**
+     * @return the score of the mirror, lower is better
+     */
+    public synchronized double getScore() {
+        double score = mLatencyMs < 0 ? UNKNOWN_LATENCY_MS : mLatencyMs;
+        score *= 1 + mConsecutiveFailures;
+        if(mPreferred) score /= 2;
+        return score;
+    }
+
+    private static int getBaseUrlTail(String wholeUrl) throws MalformedURLException{
+        int protocolNameEnd = wholeUrl.indexOf(URL_PROTOCOL_TAIL);
+        if(protocolNameEnd == -1)
+            throw new MalformedURLException("No protocol, or non path-based URL");
+        protocolNameEnd += URL_PROTOCOL_TAIL.length();
+        int hostnameEnd = wholeUrl.indexOf('/', protocolNameEnd);
+        if(protocolNameEnd >= wholeUrl.length() || hostnameEnd == protocolNameEnd)
+            throw new MalformedURLException("No hostname");
+        if(hostnameEnd == -1) hostnameEnd = wholeUrl.length();
+        return hostnameEnd;
+    }
+}
@@ -0,0 +1,190 @@
+package net.kdt.pojavlaunch.mirrors;
+
+import static net.kdt.pojavlaunch.PojavApplication.sExecutorService;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.downloader.BandwidthManager;
+import net.kdt.pojavlaunch.downloader.TransportRequest;
+import net.kdt.pojavlaunch.downloader.TransportResponse;
+import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+import net.kdt.pojavlaunch.utils.DownloadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps track of all download sources and of how well they are doing. The official source is
+ * always available; the mirror picked in the settings and the user-defined mirrors from
+ * mirrors.json in the game directory are added to it.
+ * <p>
+ * mirrors.json is an array of objects with a "name", an optional "preferred" flag and the base
+ * URLs that replace the official ones: "libraries" (replaces https://libraries.minecraft.net),
+ * "metadata" (replaces the host of the version and asset index files) and "assets"
+ * (replaces https://resources.download.minecraft.net). Missing URLs mean that the mirror
+ * does not serve that kind of file.
+ * <p>
+ * An entry with a "store" instead of the base URLs is a PeerMirror: the base URL of another launcher's
+ * file store on the local network, or the path of a local directory with the same layout. Peers are
+ * tried before every other source for the files with a known hash.
+ */
+public class MirrorRegistry {
+    private static final String[] MIRROR_BMCLAPI = {
+            "https://bmclapi2.bangbang93.com/maven",
+            "https://bmclapi2.bangbang93.com",
+            "https://bmclapi2.bangbang93.com/assets"
+    };
+    private static final String PROBE_URL = "https://piston-meta.mojang.com/mc/game/version_manifest_v2.json";
+    private static final long PROBE_INTERVAL_MS = 10 * 60 * 1000;
+    private static MirrorRegistry sInstance;
+
+    private final String mDownloadSource;
+    private final List<Mirror> mMirrors = new ArrayList<>();
+    private long mLastProbeTime = -1;
+
+    private MirrorRegistry(String downloadSource) {
+        this.mDownloadSource = downloadSource;
+        mMirrors.add(new Mirror("official", null, downloadSource.equals("default")));
+        if(downloadSource.equals("bmclapi")) mMirrors.add(new Mirror("bmclapi", MIRROR_BMCLAPI, true));
+        loadUserMirrors();
+    }
+
+    /**
+     * Get the registry for the current download source setting. The registry is recreated
+     * (and the mirror scores are lost) when the setting changes.
+     * @return the MirrorRegistry
+     */
+    public static synchronized MirrorRegistry getInstance() {
+        String downloadSource = LauncherPreferences.PREF_DOWNLOAD_SOURCE;
+        if(sInstance == null || !sInstance.mDownloadSource.equals(downloadSource))
+            sInstance = new MirrorRegistry(downloadSource);
+        return sInstance;
+    }
+
+    /**
+     * @return whether any source besides the official one may be used for downloads. Peers are
+     *         not counted, as every file they send is verified.
+     */
+    public boolean hasMirrors() {
+        for(Mirror mirror : mMirrors) {
+            if(!mirror.isOfficial() && !(mirror instanceof PeerMirror)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the peers, in the order they should be tried
+     */
+    public List<PeerMirror> getPeers() {
+        List<PeerMirror> peers = new ArrayList<>();
+        for(Mirror mirror : getCandidates(-1)) {
+            if(mirror instanceof PeerMirror) peers.add((PeerMirror) mirror);
+        }
+        return peers;
+    }
+
+    /**
+     * Get the sources to try for a download, best one first. Healthy peers come before all other
+     * sources. Mirrors that failed recently are moved to the end of the list instead of being
+     * left out, so that there is always something to fall back to. Mirrors that sent a wrong file
+     * are left out.
+     * @param downloadClass the DownloadMirror download class
+     * @return the list of candidate mirrors
+     */
+    public List<Mirror> getCandidates(int downloadClass) {
+        probeIfStale();
+        List<Mirror> healthyPeers = new ArrayList<>();
+        List<Mirror> healthyMirrors = new ArrayList<>(mMirrors.size());
+        List<Mirror> failingMirrors = new ArrayList<>(mMirrors.size());
+        for(Mirror mirror : mMirrors) {
+            if(mirror.isDisabled()) continue;
+            if(!mirror.isHealthy()) failingMirrors.add(mirror);
+            else if(mirror instanceof PeerMirror) healthyPeers.add(mirror);
+            else healthyMirrors.add(mirror);
+        }
+        Collections.sort(healthyPeers, (a, b) -> Double.compare(a.getScore(), b.getScore()));
+        Collections.sort(healthyMirrors, (a, b) -> Double.compare(a.getScore(), b.getScore()));
+        Collections.sort(failingMirrors, (a, b) -> Double.compare(a.getScore(), b.getScore()));
+        healthyPeers.addAll(healthyMirrors);
+        healthyPeers.addAll(failingMirrors);
+        return healthyPeers;
+    }
+
+    /**
+     * Measure the latency of every mirror in the background, if it was not done recently.
+     */
+    public void probeIfStale() {
+        if(!hasMirrors()) return;
+        synchronized (this) {
+            long currentTime = SystemClock.elapsedRealtime();
+            if(mLastProbeTime != -1 && currentTime - mLastProbeTime < PROBE_INTERVAL_MS) return;
+            mLastProbeTime = currentTime;
+        }
+        sExecutorService.execute(() -> {
+            for(Mirror mirror : mMirrors) probeMirror(mirror);
+        });
+    }
+
+    private static void probeMirror(Mirror mirror) {
+        try {
+            String probeUrl = mirror.getMirrorUrl(DownloadMirror.DOWNLOAD_CLASS_METADATA, PROBE_URL);
+            if(probeUrl == null) return;
+            long startTime = SystemClock.elapsedRealtime();
+            TransportRequest request = new TransportRequest(new URL(probeUrl), "HEAD", null)
+                    .setPriority(BandwidthManager.PRIORITY_BACKGROUND);
+            try (TransportResponse response = DownloadUtils.getTransport().execute(request)) {
+                response.checkSuccess();
+            }
+            mirror.recordSuccess(SystemClock.elapsedRealtime() - startTime);
+        }catch (IOException e) {
+            Log.w("MirrorRegistry", "Probe of mirror " + mirror.name + " failed", e);
+            mirror.recordFailure();
+        }
+    }
+
+    private void loadUserMirrors() {
+        File configFile = new File(Tools.DIR_GAME_HOME, "mirrors.json");
+        if(!configFile.isFile()) return;
+        try {
+            MirrorConfig[] mirrorConfigs = Tools.GLOBAL_GSON.fromJson(Tools.read(configFile), MirrorConfig[].class);
+            if(mirrorConfigs == null) return;
+            for(MirrorConfig config : mirrorConfigs) {
+                if(config == null || config.name == null) continue;
+                if(config.store != null) {
+                    mMirrors.add(new PeerMirror(config.name, config.store));
+                    Log.i("MirrorRegistry", "Added peer " + config.name);
+                    continue;
+                }
+                String[] baseUrls = new String[] {
+                        trimSlash(config.libraries), trimSlash(config.metadata), trimSlash(config.assets)
+                };
+                mMirrors.add(new Mirror(config.name, baseUrls, config.preferred));
+                Log.i("MirrorRegistry", "Added user-defined mirror " + config.name);
+            }
+        }catch (IOException | JsonParseException e) {
+            Log.w("MirrorRegistry", "Failed to load the user-defined mirrors", e);
+        }
+    }
+
+    private static String trimSlash(String url) {
+        if(url == null || !url.endsWith("/")) return url;
+        return url.substring(0, url.length() - 1);
+    }
+
+    private static class MirrorConfig {
+        public String name;
+        public String libraries;
+        public String metadata;
+        public String assets;
+        public String store;
+        public boolean preferred;
+    }
+}
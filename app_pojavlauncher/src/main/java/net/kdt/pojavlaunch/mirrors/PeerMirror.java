@@ -0,0 +1,46 @@
+package net.kdt.pojavlaunch.mirrors;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * A content-addressed download source: another launcher on the local network that serves its
+ * BlobStore over HTTP, or a local directory (for example on an SD card) with the same layout,
+ * where a file with the hash "abcd..." is stored at "ab/abcd...".
+ * <p>
+ * Peers only serve files with a known hash, and every file they send is verified against it,
+ * so a peer can't slip a modified file into an install.
+ */
+public class PeerMirror extends Mirror {
+    private final String mStoreUrl;
+
+    /**
+     * @param name the name of the peer, used in the logs
+     * @param store the base URL of the peer's store, or the path of a local directory
+     */
+    public PeerMirror(String name, String store) {
+        // Never rewrites the URLs of the official source
+        super(name, new String[0], true);
+        String storeUrl = store.contains("://") ? store : new File(store).toURI().toString();
+        if(storeUrl.endsWith("/")) storeUrl = storeUrl.substring(0, storeUrl.length() - 1);
+        this.mStoreUrl = storeUrl;
+    }
+
+    @Nullable
+    @Override
+    public String getMirrorUrl(int downloadClass, String mojangUrl, @Nullable String hash) {
+        if(hash == null || !isValidHash(hash)) return null;
+        String normalizedHash = hash.toLowerCase();
+        return mStoreUrl + "/" + normalizedHash.substring(0, 2) + "/" + normalizedHash;
+    }
+
+    private static boolean isValidHash(String hash) {
+        // SHA-1 or SHA-512
+        if(hash.length() != 40 && hash.length() != 128) return false;
+        for(int i = 0; i < hash.length(); i++) {
+            if(Character.digit(hash.charAt(i), 16) == -1) return false;
+        }
+        return true;
+    }
+}
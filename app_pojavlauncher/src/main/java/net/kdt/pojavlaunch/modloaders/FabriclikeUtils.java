@@ -22,6 +22,8 @@ public class FabriclikeUtils {
     private static final String GAME_METADATA_URL = "%s/versions/game";
 
     private static final String JSON_DOWNLOAD_URL = "%s/versions/loader/%s/%s/profile/json";
+    // New loader builds come out often, so the lists are revalidated more often than the default
+    private static final long METADATA_CACHE_TTL = 6 * 3600000;
 
     private final String mApiUrl;
     private final String mCachePrefix;
@@ -38,7 +40,7 @@ public class FabriclikeUtils {
     public FabricVersion[] downloadGameVersions() throws IOException{
         try {
             return DownloadUtils.downloadStringCached(String.format(GAME_METADATA_URL, mApiUrl), mCachePrefix+"_game_versions",
-                    FabriclikeUtils::deserializeRawVersions
+                    METADATA_CACHE_TTL, FabriclikeUtils::deserializeRawVersions
             );
         }catch (DownloadUtils.ParseException ignored) {}
         return null;
@@ -48,7 +50,7 @@ public class FabriclikeUtils {
         try {
             String urlEncodedGameVersion = URLEncoder.encode(gameVersion, "UTF-8");
             return DownloadUtils.downloadStringCached(String.format(LOADER_METADATA_URL, mApiUrl, urlEncodedGameVersion),
-                    mCachePrefix+"_loader_versions."+urlEncodedGameVersion,
+                    mCachePrefix+"_loader_versions."+urlEncodedGameVersion, METADATA_CACHE_TTL,
                     (input)->{ try {
                         return deserializeLoaderVersions(input);
                     }catch (JSONException e) {
@@ -6,12 +6,13 @@ import android.util.Log;
 import com.google.gson.Gson;
 
 import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.downloader.BandwidthManager;
+import net.kdt.pojavlaunch.downloader.TransportRequest;
+import net.kdt.pojavlaunch.downloader.TransportResponse;
+import net.kdt.pojavlaunch.utils.DownloadUtils;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
@@ -59,14 +60,15 @@ public class ApiHandler {
     public static String getRaw(Map<String, String> headers, String url) {
         Log.d("ApiHandler", url);
         try {
-            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-            addHeaders(conn, headers);
-            InputStream inputStream = conn.getInputStream();
-            String data = Tools.read(inputStream);
-            Log.d(ApiHandler.class.toString(), data);
-            inputStream.close();
-            conn.disconnect();
-            return data;
+            TransportRequest request = new TransportRequest(url).setHeaders(headers)
+                    .setPriority(BandwidthManager.PRIORITY_METADATA)
+                    .acceptCompressed();
+            try (TransportResponse response = DownloadUtils.getTransport().execute(request)) {
+                response.checkSuccess();
+                String data = Tools.read(response.getDecodedInputStream());
+                Log.d(ApiHandler.class.toString(), data);
+                return data;
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -79,37 +81,22 @@ public class ApiHandler {
 
     public static String postRaw(Map<String, String> headers, String url, String body) {
         try {
-            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            addHeaders(conn, headers);
-            conn.setDoOutput(true);
-
-            OutputStream outputStream = conn.getOutputStream();
-            byte[] input = body.getBytes(StandardCharsets.UTF_8);
-            outputStream.write(input, 0, input.length);
-            outputStream.close();
-
-            InputStream inputStream = conn.getInputStream();
-            String data = Tools.read(inputStream);
-            inputStream.close();
-
-            conn.disconnect();
-            return data;
+            TransportRequest request = new TransportRequest(new URL(url), "POST", body.getBytes(StandardCharsets.UTF_8))
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Accept", "application/json")
+                    .setHeaders(headers)
+                    .setPriority(BandwidthManager.PRIORITY_METADATA)
+                    .acceptCompressed();
+            try (TransportResponse response = DownloadUtils.getTransport().execute(request)) {
+                response.checkSuccess();
+                return Tools.read(response.getDecodedInputStream());
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
-    private static void addHeaders(HttpURLConnection connection, Map<String, String> headers) {
-        if(headers != null) {
-            for(String key : headers.keySet())
-                connection.addRequestProperty(key, headers.get(key));
-        }
-    }
-
     private static String parseQueries(HashMap<String, Object> query) {
         StringBuilder params = new StringBuilder("?");
         for (String param : query.keySet()) {
@@ -184,7 +184,9 @@ public class CurseforgeApi implements ModpackApi{
             );
             String overridesDir = "overrides";
             if(curseManifest.overrides != null) overridesDir = curseManifest.overrides;
-            ZipUtils.zipExtract(modpackZipFile, overridesDir, instanceDestination);
+            ZipUtils.zipExtract(modpackZipFile, overridesDir, instanceDestination, (c,m)->
+                    ProgressKeeper.submitProgress(ProgressLayout.INSTALL_MODPACK, (int) Math.max((float)c/m*100,0), R.string.modpack_download_applying_overrides, c, m)
+            );
             return createInfo(curseManifest.minecraft);
         }
     }
@@ -3,60 +3,95 @@ package net.kdt.pojavlaunch.modloaders.modpacks.api;
 import androidx.annotation.Nullable;
 
 import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.downloader.BlobStore;
+import net.kdt.pojavlaunch.downloader.CircuitOpenException;
+import net.kdt.pojavlaunch.downloader.DownloadBatch;
+import net.kdt.pojavlaunch.downloader.DownloadRegistry;
+import net.kdt.pojavlaunch.downloader.DownloadScheduler;
+import net.kdt.pojavlaunch.downloader.InsufficientSpaceException;
+import net.kdt.pojavlaunch.downloader.ProgressAggregator;
+import net.kdt.pojavlaunch.downloader.RetryPolicy;
+import net.kdt.pojavlaunch.downloader.VerifiedFileIndex;
+import net.kdt.pojavlaunch.mirrors.DownloadMirror;
 import net.kdt.pojavlaunch.utils.DownloadUtils;
+import net.kdt.pojavlaunch.utils.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class ModDownloader {
     private static final ThreadLocal<byte[]> sThreadLocalBuffer = new ThreadLocal<>();
-    private final ThreadPoolExecutor mDownloadPool = new ThreadPoolExecutor(4,4,100, TimeUnit.MILLISECONDS,
-            new LinkedBlockingQueue<>());
+    // File info queries talk to the API first, so their download URL is not known in advance
+    private static final String FILE_INFO_HOST_KEY = "modpack_file_info";
+    private final DownloadBatch mDownloadBatch = DownloadScheduler.getInstance().newBatch();
     private final AtomicBoolean mTerminator = new AtomicBoolean(false);
-    private final AtomicLong mDownloadSize = new AtomicLong(0);
+    private final ProgressAggregator mProgress = new ProgressAggregator();
     private final Object mExceptionSyncPoint = new Object();
     private final File mDestinationDirectory;
     private final boolean mUseFileCount;
+    // Sized downloads wait here until the free space is checked
+    private final List<DownloadTask> mPendingTasks = new ArrayList<>();
     private IOException mFirstIOException;
     private long mTotalSize;
+    private long mSpaceNeeded; // The space taken up by the downloads, minus the files they replace
 
     public ModDownloader(File destinationDirectory) {
         this(destinationDirectory, false);
     }
 
     public ModDownloader(File destinationDirectory, boolean useFileCount) {
-        this.mDownloadPool.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
         this.mDestinationDirectory = destinationDirectory;
         this.mUseFileCount = useFileCount;
+        // Notice the directories removed since the last install
+        FileUtils.clearKnownPaths();
     }
 
     public void submitDownload(int fileSize, String relativePath, @Nullable String downloadHash, String... url) {
         if(mUseFileCount) mTotalSize += 1;
         else mTotalSize += fileSize;
-        mDownloadPool.execute(new DownloadTask(url, new File(mDestinationDirectory, relativePath), downloadHash));
+        File destination = new File(mDestinationDirectory, relativePath);
+        DownloadTask task = new DownloadTask(url, destination, downloadHash, fileSize);
+        if(mUseFileCount) {
+            mDownloadBatch.submit(url[0], fileSize, task);
+            return;
+        }
+        // Mods that are already in place only get hashed by their task
+        mSpaceNeeded += FileUtils.getSpaceNeeded(destination, fileSize);
+        mPendingTasks.add(task);
     }
 
     public void submitDownload(FileInfoProvider infoProvider) {
         if(!mUseFileCount) throw new RuntimeException("This method can only be used in a file-counting ModDownloader");
         mTotalSize += 1;
-        mDownloadPool.execute(new FileInfoQueryTask(infoProvider));
+        mDownloadBatch.submitForHost(FILE_INFO_HOST_KEY, 0, new FileInfoQueryTask(infoProvider));
     }
 
     public void awaitFinish(Tools.DownloaderFeedback feedback) throws IOException {
+        if(!mUseFileCount) {
+            // Fail before anything is downloaded rather than when the storage fills up halfway through
+            try {
+                FileUtils.checkFreeSpace(mDestinationDirectory, mSpaceNeeded);
+            }catch (InsufficientSpaceException e) {
+                mDownloadBatch.cancel();
+                throw e;
+            }
+            for(DownloadTask task : mPendingTasks) mDownloadBatch.submit(task.mDownloadUrls[0], task.mSize, task);
+            mPendingTasks.clear();
+        }
         try {
-            mDownloadPool.shutdown();
-            while(!mDownloadPool.awaitTermination(20, TimeUnit.MILLISECONDS) && !mTerminator.get()) {
-                feedback.updateProgress((int) mDownloadSize.get(), (int) mTotalSize);
+            mDownloadBatch.seal();
+            mDownloadBatch.setCompletionListener(mProgress::finish);
+            while(mProgress.awaitUpdate(ProgressAggregator.DEFAULT_UPDATE_INTERVAL_MS)) {
+                long progress = mUseFileCount ? mProgress.getFiles() : mProgress.getBytes();
+                feedback.updateProgress((int) progress, (int) mTotalSize);
             }
             if(mTerminator.get()) {
-                mDownloadPool.shutdownNow();
+                mDownloadBatch.cancel();
                 synchronized (mExceptionSyncPoint) {
                     if(mFirstIOException == null) mExceptionSyncPoint.wait();
                     throw mFirstIOException;
@@ -64,6 +99,9 @@ public class ModDownloader {
             }
         }catch (InterruptedException e) {
             e.printStackTrace();
+            mDownloadBatch.cancel();
+        }finally {
+            VerifiedFileIndex.getInstance().flush();
         }
     }
 
@@ -77,6 +115,7 @@ public class ModDownloader {
 
     private void downloadFailed(IOException exception) {
         mTerminator.set(true);
+        mProgress.finish();
         synchronized (mExceptionSyncPoint) {
             if(mFirstIOException == null) {
                 mFirstIOException = exception;
@@ -96,7 +135,7 @@ public class ModDownloader {
                 FileInfo fileInfo = mFileInfoProvider.getFileInfo();
                 if(fileInfo == null) return;
                 new DownloadTask(new String[]{fileInfo.url},
-                        new File(mDestinationDirectory, fileInfo.relativePath), fileInfo.sha1).run();
+                        new File(mDestinationDirectory, fileInfo.relativePath), fileInfo.sha1, 0).run();
             }catch (IOException e) {
                 downloadFailed(e);
             }
@@ -106,59 +145,113 @@ public class ModDownloader {
     class DownloadTask implements Runnable, Tools.DownloaderFeedback {
         private final String[] mDownloadUrls;
         private final File mDestination;
-        private final String mSha1;
+        private final String mHash;
+        private final int mSize;
         private int last = 0;
 
         public DownloadTask(String[] downloadurls,
-                            File downloadDestination, String downloadHash) {
+                            File downloadDestination, String downloadHash, int size) {
             this.mDownloadUrls = downloadurls;
             this.mDestination = downloadDestination;
-            this.mSha1 = downloadHash;
+            this.mHash = downloadHash;
+            this.mSize = size;
         }
 
         @Override
         public void run() {
+            if(isAlreadyDownloaded()) return;
+            try {
+                // Mods listed more than once must not be written by two downloads at the same time
+                if(!DownloadRegistry.getInstance().download(mDestination, mHash, this::downloadFromSources)) {
+                    onJoinedDownload();
+                }
+            }catch (InterruptedIOException e) {
+                // The download was cancelled
+            }catch (IOException e) {
+                downloadFailed(e);
+            }
+        }
+
+        private void downloadFromSources() throws IOException {
+            if(mHash != null && BlobStore.getInstance().materialize(mHash, mDestination)) return;
+            if(mHash != null) {
+                if(DownloadMirror.downloadFromPeers(mHash, mDestination, -1, getThreadLocalBuffer(), this)) {
+                    onDownloaded();
+                    return;
+                }
+                resetProgress();
+            }
+            IOException lastException = null;
             for(String sourceUrl : mDownloadUrls) {
                 try {
-                    DownloadUtils.ensureSha1(mDestination, mSha1, (Callable<Void>) () -> {
-                        IOException exception = tryDownload(sourceUrl);
-                        if(exception != null) {
-                            throw exception;
-                        }
-                        return null;
-                    });
-
-                }catch (IOException e) {
-                    downloadFailed(e);
+                    lastException = tryDownload(sourceUrl);
+                }catch (InterruptedException e) {
+                    throw new InterruptedIOException("Download interrupted");
                 }
+                if(lastException == null) return;
             }
+            if(lastException != null) throw lastException;
+        }
+
+        private boolean isAlreadyDownloaded() {
+            // If the file exists and we don't know its hash, don't try to redownload it.
+            if(mHash == null) return mDestination.exists();
+            return DownloadUtils.verifyFileHash(mDestination, mHash);
         }
 
         private IOException tryDownload(String sourceUrl) throws InterruptedException {
-            IOException exception = null;
-            for (int i = 0; i < 5; i++) {
+            RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+            int attempts = 0;
+            while(true) {
+                attempts++;
+                IOException exception;
                 try {
-                    DownloadUtils.downloadFileMonitored(sourceUrl, mDestination, getThreadLocalBuffer(), this);
-                    if(mUseFileCount) mDownloadSize.addAndGet(1);
+                    // The hash is checked while downloading, so a mismatch fails the attempt right away
+                    DownloadUtils.downloadFileMonitored(sourceUrl, mDestination, mHash, -1,
+                            getThreadLocalBuffer(), this);
+                    onDownloaded();
                     return null;
+                } catch (CircuitOpenException e) {
+                    // The host is known to be down, try the next source right away
+                    return e;
+                } catch (SocketTimeoutException e) {
+                    exception = e;
                 } catch (InterruptedIOException e) {
                     throw new InterruptedException();
                 } catch (IOException e) {
                     e.printStackTrace();
                     exception = e;
                 }
-                if(!mUseFileCount) {
-                    mDownloadSize.addAndGet(-last);
-                    last = 0;
+                resetProgress();
+                if(!retryPolicy.canRetry(exception, attempts)) return exception;
+                try {
+                    retryPolicy.awaitRetry(exception, attempts);
+                }catch (InterruptedIOException e) {
+                    throw new InterruptedException();
                 }
             }
-            return exception;
+        }
+
+        private void onDownloaded() {
+            if(mHash != null) BlobStore.getInstance().add(mDestination, mHash);
+            if(mUseFileCount) mProgress.addFiles(1);
+        }
+
+        private void onJoinedDownload() {
+            if(mUseFileCount) mProgress.addFiles(1);
+            else mProgress.addBytes(mDestination.length());
+        }
+
+        private void resetProgress() {
+            if(mUseFileCount) return;
+            mProgress.addBytes(-last);
+            last = 0;
         }
 
         @Override
         public void updateProgress(int curr, int max) {
             if(mUseFileCount) return;
-            mDownloadSize.addAndGet(curr - last);
+            mProgress.addBytes(curr - last);
             last = curr;
         }
     }
@@ -4,6 +4,7 @@ import com.kdt.mcgui.ProgressLayout;
 
 import net.kdt.pojavlaunch.R;
 import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.mirrors.DownloadMirror;
 import net.kdt.pojavlaunch.modloaders.modpacks.imagecache.ModIconCache;
 import net.kdt.pojavlaunch.modloaders.modpacks.models.ModDetail;
 import net.kdt.pojavlaunch.progresskeeper.DownloaderProgressWrapper;
@@ -30,10 +31,13 @@ public class ModpackInstaller {
         ModLoader modLoaderInfo;
         try {
             byte[] downloadBuffer = new byte[8192];
-            DownloadUtils.ensureSha1(modpackFile, versionHash, (Callable<Void>) () -> {
-                DownloadUtils.downloadFileMonitored(versionUrl, modpackFile, downloadBuffer,
-                        new DownloaderProgressWrapper(R.string.modpack_download_downloading_metadata,
-                                ProgressLayout.INSTALL_MODPACK));
+            DownloaderProgressWrapper progressWrapper = new DownloaderProgressWrapper(
+                    R.string.modpack_download_downloading_metadata, ProgressLayout.INSTALL_MODPACK);
+            DownloadUtils.downloadVerified(modpackFile, (Callable<Void>) () -> {
+                if(versionHash != null && DownloadMirror.downloadFromPeers(versionHash, modpackFile, -1,
+                        downloadBuffer, progressWrapper)) return null;
+                DownloadUtils.downloadFileMonitored(versionUrl, modpackFile, versionHash, -1, downloadBuffer,
+                        progressWrapper);
                 return null;
             });
 
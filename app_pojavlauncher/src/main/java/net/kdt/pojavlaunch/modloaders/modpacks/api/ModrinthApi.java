@@ -142,13 +142,16 @@ public class ModrinthApi implements ModpackApi{
             
             ModDownloader modDownloader = new ModDownloader(instanceDestination);
             for(ModrinthIndex.ModrinthIndexFile indexFile : modrinthIndex.files) {
-                modDownloader.submitDownload(indexFile.fileSize, indexFile.path, indexFile.hashes.sha1, indexFile.downloads);
+                ModrinthIndex.ModrinthIndexFile.ModrinthIndexFileHashes hashes = indexFile.hashes;
+                // Prefer the stronger hash, it costs nothing extra as it's computed while downloading
+                String fileHash = hashes.sha512 != null ? hashes.sha512 : hashes.sha1;
+                modDownloader.submitDownload(indexFile.fileSize, indexFile.path, fileHash, indexFile.downloads);
             }
             modDownloader.awaitFinish(new DownloaderProgressWrapper(R.string.modpack_download_downloading_mods, ProgressLayout.INSTALL_MODPACK));
-            ProgressLayout.setProgress(ProgressLayout.INSTALL_MODPACK, 0, R.string.modpack_download_applying_overrides, 1, 2);
-            ZipUtils.zipExtract(modpackZipFile, "overrides/", instanceDestination);
-            ProgressLayout.setProgress(ProgressLayout.INSTALL_MODPACK, 50, R.string.modpack_download_applying_overrides, 2, 2);
-            ZipUtils.zipExtract(modpackZipFile, "client-overrides/", instanceDestination);
+            // client-overrides/ is applied over overrides/
+            ZipUtils.zipExtract(modpackZipFile, new String[]{"overrides/", "client-overrides/"}, instanceDestination, (c, m) ->
+                    ProgressLayout.setProgress(ProgressLayout.INSTALL_MODPACK, (int) Math.max((float)c/m*100,0), R.string.modpack_download_applying_overrides, c, m)
+            );
             return createInfo(modrinthIndex);
         }
     }
@@ -3,15 +3,20 @@ package net.kdt.pojavlaunch.modloaders.modpacks.imagecache;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import net.kdt.pojavlaunch.downloader.BandwidthManager;
+import net.kdt.pojavlaunch.downloader.DownloadRegistry;
+import net.kdt.pojavlaunch.downloader.RetryPolicy;
 import net.kdt.pojavlaunch.utils.DownloadUtils;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
 class DownloadImageTask implements Runnable {
     private static final float BITMAP_FINAL_DIMENSION = 256f;
     private final ReadFromDiskTask mParentTask;
     private int mRetryCount;
+    private IOException mLastException;
     DownloadImageTask(ReadFromDiskTask parentTask) {
         this.mParentTask = parentTask;
         this.mRetryCount = 0;
@@ -19,9 +24,16 @@ class DownloadImageTask implements Runnable {
 
     @Override
     public void run() {
+        RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
         boolean wasSuccessful = false;
-        while(mRetryCount < 5 && !(wasSuccessful = runCatching())) {
+        while(!(wasSuccessful = runCatching())) {
             mRetryCount++;
+            if(mParentTask.taskCancelled() || !retryPolicy.canRetry(mLastException, mRetryCount)) break;
+            try {
+                retryPolicy.awaitRetry(mLastException, mRetryCount);
+            }catch (InterruptedIOException e) {
+                return;
+            }
         }
         // restart the parent task to read the image and send it to the receiver
         // if it wasn't cancelled. If it was, then we just die here
@@ -30,32 +42,39 @@ class DownloadImageTask implements Runnable {
     }
 
     public boolean runCatching() {
+        mLastException = null;
         try {
             IconCacheJanitor.waitForJanitorToFinish();
-            DownloadUtils.downloadFile(mParentTask.imageUrl, mParentTask.cacheFile);
-            Bitmap bitmap = BitmapFactory.decodeFile(mParentTask.cacheFile.getAbsolutePath());
-            if(bitmap == null) return false;
-            int bitmapWidth = bitmap.getWidth(), bitmapHeight = bitmap.getHeight();
-            if(bitmapWidth <= BITMAP_FINAL_DIMENSION && bitmapHeight <= BITMAP_FINAL_DIMENSION) {
-                bitmap.recycle();
-                return true;
-            }
-            float imageRescaleRatio = Math.min(BITMAP_FINAL_DIMENSION/bitmapWidth, BITMAP_FINAL_DIMENSION/bitmapHeight);
-            Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap,
-                    (int)(bitmapWidth * imageRescaleRatio),
-                    (int)(bitmapHeight * imageRescaleRatio),
-                    true);
-            bitmap.recycle();
-            if(resizedBitmap == bitmap) return true;
-            try (FileOutputStream fileOutputStream = new FileOutputStream(mParentTask.cacheFile)) {
-                resizedBitmap.compress(Bitmap.CompressFormat.JPEG, 80, fileOutputStream);
-            } finally {
-                resizedBitmap.recycle();
-            }
+            // Several list entries can show the same icon, only one of them has to download it
+            DownloadRegistry.getInstance().download(mParentTask.cacheFile, null, this::downloadIcon);
             return true;
         }catch (IOException e) {
             e.printStackTrace();
+            mLastException = e;
             return false;
         }
     }
+
+    private void downloadIcon() throws IOException {
+        DownloadUtils.downloadFile(mParentTask.imageUrl, mParentTask.cacheFile, BandwidthManager.PRIORITY_THUMBNAIL);
+        Bitmap bitmap = BitmapFactory.decodeFile(mParentTask.cacheFile.getAbsolutePath());
+        if(bitmap == null) throw new IOException("Failed to decode the icon from "+mParentTask.imageUrl);
+        int bitmapWidth = bitmap.getWidth(), bitmapHeight = bitmap.getHeight();
+        if(bitmapWidth <= BITMAP_FINAL_DIMENSION && bitmapHeight <= BITMAP_FINAL_DIMENSION) {
+            bitmap.recycle();
+            return;
+        }
+        float imageRescaleRatio = Math.min(BITMAP_FINAL_DIMENSION/bitmapWidth, BITMAP_FINAL_DIMENSION/bitmapHeight);
+        Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap,
+                (int)(bitmapWidth * imageRescaleRatio),
+                (int)(bitmapHeight * imageRescaleRatio),
+                true);
+        bitmap.recycle();
+        if(resizedBitmap == bitmap) return;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(mParentTask.cacheFile)) {
+            resizedBitmap.compress(Bitmap.CompressFormat.JPEG, 80, fileOutputStream);
+        } finally {
+            resizedBitmap.recycle();
+        }
+    }
 }
@@ -4,6 +4,8 @@ import android.util.Base64;
 import android.util.Log;
 
 import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.downloader.DownloadBatch;
+import net.kdt.pojavlaunch.downloader.DownloadScheduler;
 
 import org.apache.commons.io.IOUtils;
 
@@ -19,11 +21,13 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class ModIconCache {
-    ThreadPoolExecutor cacheLoaderPool = new ThreadPoolExecutor(10,
-            10,
+    // Only used for reading the icons from the disk, the downloads go through the shared scheduler
+    ThreadPoolExecutor cacheLoaderPool = new ThreadPoolExecutor(4,
+            4,
             1000,
             TimeUnit.MILLISECONDS,
             new LinkedBlockingQueue<>());
+    final DownloadBatch iconDownloadBatch = DownloadScheduler.getInstance().newBatch();
     File cachePath;
     private final List<WeakReference<ImageReceiver>> mCancelledReceivers = new ArrayList<>();
     public ModIconCache() {
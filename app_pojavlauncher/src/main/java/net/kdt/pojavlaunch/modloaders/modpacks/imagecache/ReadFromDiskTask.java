@@ -21,7 +21,7 @@ public class ReadFromDiskTask implements Runnable {
     }
 
     public void runDownloadTask() {
-        iconCache.cacheLoaderPool.execute(new DownloadImageTask(this));
+        iconCache.iconDownloadBatch.submit(imageUrl, 0, new DownloadImageTask(this));
     }
 
     @Override
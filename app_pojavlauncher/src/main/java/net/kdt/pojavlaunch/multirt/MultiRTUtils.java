@@ -69,6 +69,7 @@ public class MultiRTUtils {
     public static void installRuntimeNamed(String nativeLibDir, InputStream runtimeInputStream, String name) throws IOException {
         File dest = new File(RUNTIME_FOLDER,"/"+name);
         if(dest.exists()) FileUtils.deleteDirectory(dest);
+        net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(dest);
         uncompressTarXZ(runtimeInputStream,dest);
         runtimeInputStream.close();
         unpack200(nativeLibDir,RUNTIME_FOLDER + "/" + name);
@@ -95,6 +96,7 @@ public class MultiRTUtils {
     public static void installRuntimeNamedBinpack(InputStream universalFileInputStream, InputStream platformBinsInputStream, String name, String binpackVersion) throws IOException {
         File dest = new File(RUNTIME_FOLDER,"/"+name);
         if(dest.exists()) FileUtils.deleteDirectory(dest);
+        net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(dest);
         installRuntimeNamedNoRemove(universalFileInputStream,dest);
         installRuntimeNamedNoRemove(platformBinsInputStream,dest);
 
@@ -129,6 +131,7 @@ public class MultiRTUtils {
         File dest = new File(RUNTIME_FOLDER,"/"+name);
         if(dest.exists()) {
             FileUtils.deleteDirectory(dest);
+            net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(dest);
             sCache.remove(name);
         }
     }
@@ -216,7 +219,7 @@ public class MultiRTUtils {
     private static void uncompressTarXZ(final InputStream tarFileInputStream, final File dest) throws IOException {
         net.kdt.pojavlaunch.utils.FileUtils.ensureDirectory(dest);
 
-        byte[] buffer = new byte[8192];
+        byte[] buffer = null;
         TarArchiveInputStream tarIn = new TarArchiveInputStream(
                 new XZCompressorInputStream(tarFileInputStream)
         );
@@ -242,9 +245,16 @@ public class MultiRTUtils {
             } else if (tarEntry.isDirectory()) {
                 net.kdt.pojavlaunch.utils.FileUtils.ensureDirectory(destPath);
             } else if (!destPath.exists() || destPath.length() != tarEntry.getSize()) {
-                FileOutputStream os = new FileOutputStream(destPath);
-                IOUtils.copyLarge(tarIn, os, buffer);
-                os.close();
+                int bufferSize = net.kdt.pojavlaunch.utils.FileUtils.getWriteBufferSize(tarEntry.getSize());
+                if(buffer == null || buffer.length < bufferSize) buffer = new byte[bufferSize];
+                try (FileOutputStream os = new FileOutputStream(destPath)) {
+                    net.kdt.pojavlaunch.utils.FileUtils.preallocate(os.getFD(), tarEntry.getSize());
+                    IOUtils.copyLarge(tarIn, os, buffer);
+                }catch (IOException e) {
+                    // A preallocated file already has its final length, and would be skipped next time
+                    if(!destPath.delete()) Log.w("MultiRT", "Failed to delete " + destPath);
+                    throw e;
+                }
             }
             tarEntry = tarIn.getNextTarEntry();
         }
@@ -72,6 +72,10 @@ public class LauncherPreferences {
     
     public static boolean PREF_VERIFY_MANIFEST = true;
     public static String PREF_DOWNLOAD_SOURCE = "default";
+    public static int PREF_SEGMENTED_DOWNLOAD_THRESHOLD = 8;
+    public static int PREF_DOWNLOAD_SPEED_LIMIT = 0;
+    public static boolean PREF_LIMIT_ONLY_ON_METERED = false;
+    public static boolean PREF_USE_HTTP2_TRANSPORT = false;
     public static boolean PREF_SKIP_NOTIFICATION_PERMISSION_CHECK = false;
     public static boolean PREF_VSYNC_IN_ZINK = true;
 
@@ -117,6 +121,10 @@ public class LauncherPreferences {
         PREF_BIG_CORE_AFFINITY = DEFAULT_PREF.getBoolean("bigCoreAffinity", false);
         PREF_ZINK_PREFER_SYSTEM_DRIVER = DEFAULT_PREF.getBoolean("zinkPreferSystemDriver", false);
         PREF_DOWNLOAD_SOURCE = DEFAULT_PREF.getString("downloadSource", "default");
+        PREF_SEGMENTED_DOWNLOAD_THRESHOLD = DEFAULT_PREF.getInt("segmentedDownloadThreshold", 8);
+        PREF_DOWNLOAD_SPEED_LIMIT = DEFAULT_PREF.getInt("downloadSpeedLimit", 0);
+        PREF_LIMIT_ONLY_ON_METERED = DEFAULT_PREF.getBoolean("limitOnlyOnMetered", false);
+        PREF_USE_HTTP2_TRANSPORT = DEFAULT_PREF.getBoolean("useHttp2Transport", false);
         PREF_VERIFY_MANIFEST = DEFAULT_PREF.getBoolean("verifyManifest", true);
         PREF_SKIP_NOTIFICATION_PERMISSION_CHECK = DEFAULT_PREF.getBoolean(PREF_KEY_SKIP_NOTIFICATION_CHECK, false);
         PREF_VSYNC_IN_ZINK = DEFAULT_PREF.getBoolean("vsync_in_zink", true);
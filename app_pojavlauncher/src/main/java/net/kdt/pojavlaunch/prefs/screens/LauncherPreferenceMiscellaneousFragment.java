@@ -1,11 +1,19 @@
 package net.kdt.pojavlaunch.prefs.screens;
 
+import android.app.AlertDialog;
 import android.os.Bundle;
+import android.widget.Toast;
 
 import androidx.preference.Preference;
 
 import net.kdt.pojavlaunch.R;
 import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.downloader.DownloadTelemetry;
+import net.kdt.pojavlaunch.prefs.CustomSeekBarPreference;
+import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+
+import java.io.File;
+import java.io.IOException;
 
 public class LauncherPreferenceMiscellaneousFragment extends LauncherPreferenceFragment {
     @Override
@@ -15,5 +23,41 @@ public class LauncherPreferenceMiscellaneousFragment extends LauncherPreferenceF
         if(!Tools.checkVulkanSupport(driverPreference.getContext().getPackageManager())) {
             driverPreference.setVisible(false);
         }
+        CustomSeekBarPreference segmentThresholdSeek = requirePreference("segmentedDownloadThreshold",
+                CustomSeekBarPreference.class);
+        segmentThresholdSeek.setRange(1, 128);
+        segmentThresholdSeek.setValue(LauncherPreferences.PREF_SEGMENTED_DOWNLOAD_THRESHOLD);
+        segmentThresholdSeek.setSuffix(" MB");
+        CustomSeekBarPreference speedLimitSeek = requirePreference("downloadSpeedLimit",
+                CustomSeekBarPreference.class);
+        speedLimitSeek.setRange(0, 100);
+        speedLimitSeek.setValue(LauncherPreferences.PREF_DOWNLOAD_SPEED_LIMIT);
+        speedLimitSeek.setSuffix(" MB/s");
+        requirePreference("downloadDiagnostics").setOnPreferenceClickListener(preference -> {
+            openDownloadDiagnosticsDialog();
+            return true;
+        });
+    }
+
+    private void openDownloadDiagnosticsDialog() {
+        DownloadTelemetry telemetry = DownloadTelemetry.getInstance();
+        new AlertDialog.Builder(requireContext())
+                .setTitle(R.string.preference_download_diagnostics_title)
+                .setMessage(telemetry.getSummary())
+                .setPositiveButton(R.string.download_diagnostics_export, (d, w) -> exportDownloadTelemetry())
+                .setNeutralButton(R.string.download_diagnostics_reset, (d, w) -> telemetry.reset())
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void exportDownloadTelemetry() {
+        File exportFile = new File(Tools.DIR_GAME_HOME, "download_telemetry.json");
+        try {
+            DownloadTelemetry.getInstance().exportJson(exportFile);
+            Toast.makeText(requireContext(), getString(R.string.download_diagnostics_exported,
+                    exportFile.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        }catch (IOException e) {
+            Tools.showError(requireContext(), e);
+        }
     }
 }
@@ -158,6 +158,7 @@ public class FolderProvider extends DocumentsProvider {
         if(!sourceFile.renameTo(targetFile)){
             throw new FileNotFoundException("Couldn't rename the document with id" + documentId);
         }
+        net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(sourceFile);
         return getDocIdForFile(targetFile);
     }
 
@@ -168,6 +169,7 @@ public class FolderProvider extends DocumentsProvider {
         if(!sourceFile.renameTo(targetFile)){
             throw new FileNotFoundException("Failed to move the document with id " + sourceFile.getPath());
         }
+        net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(sourceFile);
         return getDocIdForFile(targetFile);
     }
 
@@ -179,6 +181,8 @@ public class FolderProvider extends DocumentsProvider {
     @Override
     public void deleteDocument(String documentId) throws FileNotFoundException {
         File file = getFileForDocId(documentId);
+        // Files deleted by the user must not stay known to the downloaders
+        net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(file);
         if(file.isDirectory()){
             try {
                 FileUtils.deleteDirectory(file);
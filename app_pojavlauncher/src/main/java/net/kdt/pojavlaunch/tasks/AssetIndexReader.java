@@ -0,0 +1,299 @@
+package net.kdt.pojavlaunch.tasks;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import net.kdt.pojavlaunch.JAssetInfo;
+import net.kdt.pojavlaunch.JAssets;
+import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.downloader.HashingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the assets listed in an asset index without holding the whole index in memory.
+ *
+ * The first time an index is read, it is parsed as a JSON stream and a compact binary copy of it
+ * is written into the cache directory. The binary copy is keyed by the size, modification time and
+ * hash of the JSON file, so it is ignored once the JSON changes. Later reads memory-map the binary
+ * copy, which skips the JSON tokenizer and the reflective object binding.
+ */
+public class AssetIndexReader {
+    private static final int CACHE_MAGIC = 0x50414943; // "PAIC"
+    private static final int CACHE_VERSION = 1;
+    private static final int FLAG_VIRTUAL = 1;
+    private static final int FLAG_MAP_TO_RESOURCES = 2;
+    private static final int HASH_LENGTH = 20;
+    // magic, version, source size, source mtime, source hash, flags, entry count
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + HASH_LENGTH + 1 + 4;
+    private static final int ENTRY_COUNT_OFFSET = HEADER_SIZE - 4;
+
+    public interface AssetVisitor {
+        /**
+         * Called for every asset in the index.
+         * @param assets the index, with its flags filled in. Its object map is not.
+         * @param name the name of the asset
+         * @param assetInfo the hash and size of the asset
+         * @throws IOException to stop reading the index
+         */
+        void visitAsset(JAssets assets, String name, JAssetInfo assetInfo) throws IOException;
+    }
+
+    /**
+     * Read all assets of an asset index.
+     * @param indexFile the asset index JSON file
+     * @param sha1 the expected SHA-1 of the JSON file, or null if it isn't known
+     * @param visitor the visitor that receives the assets
+     * @throws IOException if the index can't be read or is malformed, or if the visitor throws
+     */
+    public static void read(File indexFile, @Nullable String sha1, AssetVisitor visitor) throws IOException {
+        byte[] sourceHash = sha1 != null && sha1.length() == HASH_LENGTH * 2 ? decodeHex(sha1) : null;
+        // Without a known hash, the cache is only checked against the size and modification time
+        if(sourceHash == null) sourceHash = new byte[HASH_LENGTH];
+        File cacheFile = getCacheFile(indexFile);
+        if(readCache(cacheFile, indexFile, sourceHash, visitor)) return;
+        readJson(indexFile, sourceHash, cacheFile, visitor);
+    }
+
+    private static File getCacheFile(File indexFile) {
+        return new File(Tools.DIR_CACHE, "asset_indexes" + File.separator + indexFile.getName() + ".bin");
+    }
+
+    private static boolean readCache(File cacheFile, File indexFile, byte[] sourceHash, AssetVisitor visitor) throws IOException {
+        if(!cacheFile.isFile()) return false;
+        MappedByteBuffer buffer;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r")) {
+            // The mapping stays valid after the channel is closed
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        }catch (IOException e) {
+            Log.w("AssetIndexReader", "Failed to map the cached index", e);
+            return false;
+        }
+        JAssets assets = new JAssets();
+        int entryCount;
+        try {
+            if(buffer.getInt() != CACHE_MAGIC || buffer.getInt() != CACHE_VERSION) return false;
+            if(buffer.getLong() != indexFile.length() || buffer.getLong() != indexFile.lastModified()) return false;
+            byte[] cachedHash = new byte[HASH_LENGTH];
+            buffer.get(cachedHash);
+            if(!Arrays.equals(cachedHash, sourceHash)) return false;
+            int flags = buffer.get();
+            assets.virtual = (flags & FLAG_VIRTUAL) != 0;
+            assets.mapToResources = (flags & FLAG_MAP_TO_RESOURCES) != 0;
+            entryCount = buffer.getInt();
+            // Walk over the entries once before visiting them, so that a broken file is found
+            // before the visitor has seen any of its entries
+            if(!checkEntries(buffer.duplicate(), entryCount)) {
+                Log.w("AssetIndexReader", "The cached index is broken, reading the JSON");
+                return false;
+            }
+        }catch (BufferUnderflowException e) {
+            return false;
+        }
+        byte[] nameBytes = new byte[256];
+        byte[] hash = new byte[HASH_LENGTH];
+        for(int i = 0; i < entryCount; i++) {
+            int nameLength = buffer.getShort() & 0xFFFF;
+            if(nameBytes.length < nameLength) nameBytes = new byte[nameLength];
+            buffer.get(nameBytes, 0, nameLength);
+            buffer.get(hash);
+            JAssetInfo assetInfo = new JAssetInfo();
+            assetInfo.hash = HashingOutputStream.toHex(hash);
+            assetInfo.size = buffer.getInt();
+            visitor.visitAsset(assets, new String(nameBytes, 0, nameLength, StandardCharsets.UTF_8), assetInfo);
+        }
+        return true;
+    }
+
+    private static boolean checkEntries(ByteBuffer buffer, int entryCount) {
+        if(entryCount < 0) return false;
+        for(int i = 0; i < entryCount; i++) {
+            if(buffer.remaining() < 2) return false;
+            int entryLength = (buffer.getShort() & 0xFFFF) + HASH_LENGTH + 4;
+            if(buffer.remaining() < entryLength) return false;
+            buffer.position(buffer.position() + entryLength);
+        }
+        return !buffer.hasRemaining();
+    }
+
+    private static void readJson(File indexFile, byte[] sourceHash, File cacheFile, AssetVisitor visitor) throws IOException {
+        // The flags decide where the assets go, and nothing guarantees that they come before the objects
+        JAssets assets = readFlags(indexFile);
+        CacheWriter cacheWriter = CacheWriter.open(cacheFile, indexFile, sourceHash, assets);
+        TypeAdapter<JAssetInfo> assetInfoAdapter = Tools.GLOBAL_GSON.getAdapter(JAssetInfo.class);
+        try (JsonReader reader = openJson(indexFile)) {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                if(!reader.nextName().equals("objects") || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    JAssetInfo assetInfo = assetInfoAdapter.read(reader);
+                    if(assetInfo == null || assetInfo.hash == null) continue;
+                    if(cacheWriter != null && !cacheWriter.write(name, assetInfo)) cacheWriter = null;
+                    visitor.visitAsset(assets, name, assetInfo);
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+            if(cacheWriter != null) cacheWriter.commit();
+            cacheWriter = null;
+        }catch (IllegalStateException | JsonParseException e) {
+            throw new IOException("Malformed asset index " + indexFile.getName(), e);
+        }finally {
+            if(cacheWriter != null) cacheWriter.abort();
+        }
+    }
+
+    private static JAssets readFlags(File indexFile) throws IOException {
+        JAssets assets = new JAssets();
+        try (JsonReader reader = openJson(indexFile)) {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "virtual": assets.virtual = reader.nextBoolean(); break;
+                    case "map_to_resources": assets.mapToResources = reader.nextBoolean(); break;
+                    default: reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }catch (IllegalStateException e) {
+            throw new IOException("Malformed asset index " + indexFile.getName(), e);
+        }
+        return assets;
+    }
+
+    private static JsonReader openJson(File indexFile) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8)));
+        // Same leniency as Gson.fromJson()
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static byte[] decodeHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if(high == -1 || low == -1) return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the binary copy of an index into a temporary file while the JSON is being read, and
+     * moves it into place once the whole index was read.
+     */
+    private static class CacheWriter {
+        private final File mCacheFile;
+        private final File mTempFile;
+        private final FileOutputStream mFileStream;
+        private final DataOutputStream mOutputStream;
+        private int mEntryCount;
+
+        private CacheWriter(File cacheFile, File tempFile, FileOutputStream fileStream) {
+            this.mCacheFile = cacheFile;
+            this.mTempFile = tempFile;
+            this.mFileStream = fileStream;
+            this.mOutputStream = new DataOutputStream(new BufferedOutputStream(fileStream));
+        }
+
+        @Nullable
+        static CacheWriter open(File cacheFile, File indexFile, byte[] sourceHash, JAssets assets) {
+            File parent = cacheFile.getParentFile();
+            if(parent == null || (!parent.isDirectory() && !parent.mkdirs())) return null;
+            File tempFile = new File(parent, cacheFile.getName() + ".tmp");
+            CacheWriter cacheWriter = null;
+            try {
+                cacheWriter = new CacheWriter(cacheFile, tempFile, new FileOutputStream(tempFile));
+                DataOutputStream outputStream = cacheWriter.mOutputStream;
+                outputStream.writeInt(CACHE_MAGIC);
+                outputStream.writeInt(CACHE_VERSION);
+                outputStream.writeLong(indexFile.length());
+                outputStream.writeLong(indexFile.lastModified());
+                outputStream.write(sourceHash);
+                outputStream.writeByte((assets.virtual ? FLAG_VIRTUAL : 0)
+                        | (assets.mapToResources ? FLAG_MAP_TO_RESOURCES : 0));
+                outputStream.writeInt(0); // Entry count, filled in by commit()
+                return cacheWriter;
+            }catch (IOException e) {
+                Log.w("AssetIndexReader", "Failed to create the index cache", e);
+                if(cacheWriter != null) cacheWriter.abort();
+                return null;
+            }
+        }
+
+        /**
+         * @return false if the entry can't be cached, in which case the writer was aborted
+         */
+        boolean write(String name, JAssetInfo assetInfo) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] hash = assetInfo.hash.length() == HASH_LENGTH * 2 ? decodeHex(assetInfo.hash) : null;
+            // Entries that don't fit the fixed layout are rare enough to not cache such indexes at all
+            if(hash == null || nameBytes.length > 0xFFFF) {
+                abort();
+                return false;
+            }
+            try {
+                mOutputStream.writeShort(nameBytes.length);
+                mOutputStream.write(nameBytes);
+                mOutputStream.write(hash);
+                mOutputStream.writeInt(assetInfo.size);
+                mEntryCount++;
+                return true;
+            }catch (IOException e) {
+                Log.w("AssetIndexReader", "Failed to write the index cache", e);
+                abort();
+                return false;
+            }
+        }
+
+        void commit() {
+            try {
+                mOutputStream.flush();
+                ByteBuffer entryCount = ByteBuffer.allocate(4);
+                entryCount.putInt(0, mEntryCount);
+                mFileStream.getChannel().write(entryCount, ENTRY_COUNT_OFFSET);
+                mOutputStream.close();
+                if(!mTempFile.renameTo(mCacheFile)) throw new IOException("Failed to move the index cache into place");
+            }catch (IOException e) {
+                Log.w("AssetIndexReader", "Failed to save the index cache", e);
+                abort();
+            }
+        }
+
+        void abort() {
+            try {
+                mOutputStream.close();
+            }catch (IOException e) {
+                // Nothing to do, the file gets deleted anyway
+            }
+            if(mTempFile.exists() && !mTempFile.delete()) Log.w("AssetIndexReader", "Failed to delete the temporary index cache");
+        }
+    }
+}
@@ -103,6 +103,7 @@ public class AsyncAssetManager {
         if(!versionFile.exists()) {
             if (versionFile.getParentFile().exists() && versionFile.getParentFile().isDirectory()) {
                 FileUtils.deleteDirectory(versionFile.getParentFile());
+                net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(versionFile.getParentFile());
             }
             versionFile.getParentFile().mkdir();
 
@@ -118,6 +119,7 @@ public class AsyncAssetManager {
             if (!release1.equals(release2)) {
                 if (versionFile.getParentFile().exists() && versionFile.getParentFile().isDirectory()) {
                     FileUtils.deleteDirectory(versionFile.getParentFile());
+                    net.kdt.pojavlaunch.utils.FileUtils.invalidateKnownPaths(versionFile.getParentFile());
                 }
                 versionFile.getParentFile().mkdir();
 
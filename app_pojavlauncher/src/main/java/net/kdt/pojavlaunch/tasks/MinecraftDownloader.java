@@ -16,6 +16,12 @@ import net.kdt.pojavlaunch.JMinecraftVersionList;
 import net.kdt.pojavlaunch.NewJREUtil;
 import net.kdt.pojavlaunch.R;
 import net.kdt.pojavlaunch.Tools;
+import net.kdt.pojavlaunch.downloader.BlobStore;
+import net.kdt.pojavlaunch.downloader.DownloadBatch;
+import net.kdt.pojavlaunch.downloader.DownloadRegistry;
+import net.kdt.pojavlaunch.downloader.DownloadScheduler;
+import net.kdt.pojavlaunch.downloader.ProgressAggregator;
+import net.kdt.pojavlaunch.downloader.VerifiedFileIndex;
 import net.kdt.pojavlaunch.mirrors.DownloadMirror;
 import net.kdt.pojavlaunch.mirrors.MirrorTamperedException;
 import net.kdt.pojavlaunch.prefs.LauncherPreferences;
@@ -27,22 +33,26 @@ import net.kdt.pojavlaunch.value.MinecraftLibraryArtifact;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class MinecraftDownloader {
     public static final String MINECRAFT_RES = "https://resources.download.minecraft.net/";
+    // The progress text shows the downloaded size with two decimal places of a megabyte
+    private static final long MIN_DISPLAYED_SIZE_CHANGE = 10 * 1024;
     private AtomicReference<Exception> mDownloaderThreadException;
-    private ArrayList<DownloaderTask> mScheduledDownloadTasks;
-    private AtomicLong mDownloadFileCounter;
-    private AtomicLong mDownloadSizeCounter;
+    private DownloadBatch mDownloadBatch;
+    private HashSet<File> mPlannedFiles;
+    private ProgressAggregator mProgress;
     private long mDownloadFileCount;
+    private long mDownloadSizeDelta;
+    private long mUsableSpace; // The free space before anything was downloaded, 0 if unknown
+    private long mSpaceNeeded; // The space taken up by the planned downloads, minus the files they replace
     private File mSourceJarFile; // The source client JAR picked during the inheritance process
     private File mTargetJarFile; // The destination client JAR to which the source will be copied to.
 
@@ -82,33 +92,45 @@ public class MinecraftDownloader {
         ProgressLayout.setProgress(ProgressLayout.DOWNLOAD_MINECRAFT, 0, R.string.newdl_starting);
 
         mTargetJarFile = createGameJarPath(versionName);
-        mScheduledDownloadTasks = new ArrayList<>();
-        mDownloadFileCounter = new AtomicLong(0);
-        mDownloadSizeCounter = new AtomicLong(0);
+        // Notice the directories removed since the last install
+        FileUtils.clearKnownPaths();
+        mPlannedFiles = new HashSet<>();
+        mDownloadFileCount = 0;
+        mDownloadSizeDelta = 0;
+        mUsableSpace = FileUtils.getUsableSpace(new File(Tools.DIR_GAME_HOME));
+        mSpaceNeeded = 0;
+        mProgress = new ProgressAggregator();
         mDownloaderThreadException = new AtomicReference<>(null);
-
-        if(!downloadAndProcessMetadata(activity, verInfo, versionName)) {
-            throw new RuntimeException(activity.getString(R.string.exception_failed_to_unpack_jre17));
-        }
-
-        ArrayBlockingQueue<Runnable> taskQueue =
-                new ArrayBlockingQueue<>(mScheduledDownloadTasks.size(), false);
-        ThreadPoolExecutor downloaderPool =
-                new ThreadPoolExecutor(4, 4, 500, TimeUnit.MILLISECONDS, taskQueue);
-
-        // I have tried pre-filling the queue directly instead of doing this, but it didn't work.
-        // What a shame.
-        for(DownloaderTask scheduledTask : mScheduledDownloadTasks) downloaderPool.execute(scheduledTask);
-        downloaderPool.shutdown();
+        // Downloads are submitted while the metadata is still being processed
+        DownloadBatch downloadBatch = DownloadScheduler.getInstance().newBatch();
+        mDownloadBatch = downloadBatch;
 
         try {
-            while (mDownloaderThreadException.get() == null &&
-                    !downloaderPool.awaitTermination(33, TimeUnit.MILLISECONDS)) {
-                long dlFileCounter = mDownloadFileCounter.get();
-                int progress = (int)((dlFileCounter * 100L) / mDownloadFileCount);
+            if(!processMetadata(activity, verInfo, versionName)) {
+                throw new RuntimeException(activity.getString(R.string.exception_failed_to_unpack_jre17));
+            }
+            // The downloads are already running by now, so this is only a record of the plan. The user
+            // sees the planned file count grow in the progress line while the metadata is processed.
+            Log.i("NewMCDownloader", "Planned " + mDownloadFileCount + " files (" + mDownloadSizeDelta
+                    + " bytes, " + mSpaceNeeded + " bytes of new disk space), the rest is up to date");
+            // The set can be large when there are a lot of assets, and it's not needed anymore
+            mPlannedFiles = null;
+            downloadBatch.seal();
+            downloadBatch.setCompletionListener(mProgress::finish);
+
+            long lastFileCount = -1, lastSize = 0;
+            while (mProgress.awaitUpdate(ProgressAggregator.DEFAULT_UPDATE_INTERVAL_MS)) {
+                long dlFileCounter = mProgress.getFiles();
+                long dlSizeCounter = mProgress.getBytes();
+                // Skip updates that would not change the displayed text
+                if(dlFileCounter == lastFileCount && Math.abs(dlSizeCounter - lastSize) < MIN_DISPLAYED_SIZE_CHANGE)
+                    continue;
+                lastFileCount = dlFileCounter;
+                lastSize = dlSizeCounter;
+                int progress = (int)((dlFileCounter * 100L) / Math.max(mDownloadFileCount, 1));
                 ProgressLayout.setProgress(ProgressLayout.DOWNLOAD_MINECRAFT, progress,
                         R.string.newdl_downloading_game_files, dlFileCounter,
-                        mDownloadFileCount, (double)mDownloadSizeCounter.get() / (1024d * 1024d));
+                        mDownloadFileCount, (double)dlSizeCounter / (1024d * 1024d));
             }
             Exception thrownException = mDownloaderThreadException.get();
             if(thrownException != null) {
@@ -118,8 +140,12 @@ public class MinecraftDownloader {
             }
         }catch (InterruptedException e) {
             // Interrupted while waiting, which means that the download was cancelled.
-            // Kill all downloading threads immediately, and ignore any exceptions thrown by them
-            downloaderPool.shutdownNow();
+            // The downloads get killed below, and any exceptions thrown by them are ignored.
+        }finally {
+            // Kill all remaining downloads immediately, in case of a cancellation or a failure
+            downloadBatch.cancel();
+            VerifiedFileIndex.getInstance().flush();
+            BlobStore.getInstance().pruneIfStale();
         }
     }
 
@@ -164,7 +190,7 @@ public class MinecraftDownloader {
         return targetFile;
     }
 
-    private JAssets downloadAssetsIndex(JMinecraftVersionList.Version verInfo) throws IOException{
+    private File downloadAssetsIndex(JMinecraftVersionList.Version verInfo) throws IOException{
         JMinecraftVersionList.AssetIndex assetIndex = verInfo.assetIndex;
         if(assetIndex == null || verInfo.assets == null) return null;
         File targetFile = new File(Tools.ASSETS_PATH, "indexes"+ File.separator + verInfo.assets + ".json");
@@ -175,7 +201,7 @@ public class MinecraftDownloader {
             DownloadMirror.downloadFileMirrored(DownloadMirror.DOWNLOAD_CLASS_METADATA, assetIndex.url, targetFile);
             return null;
         });
-        return Tools.GLOBAL_GSON.fromJson(Tools.read(targetFile), JAssets.class);
+        return targetFile;
     }
     
     private MinecraftClientInfo getClientInfo(JMinecraftVersionList.Version verInfo) {
@@ -185,15 +211,48 @@ public class MinecraftDownloader {
     }
 
     /**
-     * Download (if necessary) and process a version's metadata, scheduling all downloads that this
-     * version needs.
+     * Download (if necessary) and process the metadata of a version and all versions it inherits
+     * from, scheduling all downloads that they need.
+     * The asset indexes are downloaded and read in the background, while the inheritance chain is
+     * followed, so that the metadata round trips overlap each other and the file downloads.
      * @param activity Activity, used for automatic installation of JRE 17 if needed
      * @param verInfo The JMinecraftVersionList.Version from the version list, if available
      * @param versionName The version ID (necessary)
      * @return false if JRE17 installation failed, true otherwise
      * @throws IOException if the download of any of the metadata files fails
      */
-    private boolean downloadAndProcessMetadata(Activity activity, JMinecraftVersionList.Version verInfo, String versionName) throws IOException, MirrorTamperedException {
+    private boolean processMetadata(Activity activity, JMinecraftVersionList.Version verInfo, String versionName) throws IOException, MirrorTamperedException {
+        // Keyed by the asset index ID, which a version often shares with the version it inherits from
+        HashMap<String, FutureTask<Void>> assetIndexTasks = new HashMap<>();
+        try {
+            if(!downloadAndProcessMetadata(activity, verInfo, versionName, assetIndexTasks)) return false;
+            for(FutureTask<Void> assetIndexTask : assetIndexTasks.values()) awaitMetadataTask(assetIndexTask);
+            return true;
+        }finally {
+            // Stop the tasks that are still running if the metadata processing failed
+            for(FutureTask<Void> assetIndexTask : assetIndexTasks.values()) assetIndexTask.cancel(true);
+        }
+    }
+
+    private static void awaitMetadataTask(FutureTask<Void> task) throws IOException, MirrorTamperedException {
+        // Run the task right here if the executor hasn't started it yet, instead of waiting for a free thread
+        task.run();
+        try {
+            task.get();
+        }catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while processing metadata");
+        }catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof MirrorTamperedException) throw (MirrorTamperedException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private boolean downloadAndProcessMetadata(Activity activity, JMinecraftVersionList.Version verInfo, String versionName,
+                                               Map<String, FutureTask<Void>> assetIndexTasks) throws IOException, MirrorTamperedException {
         File versionJsonFile;
         if(verInfo != null) versionJsonFile = downloadGameJson(verInfo);
         else versionJsonFile = createGameJsonPath(versionName);
@@ -207,9 +266,19 @@ public class MinecraftDownloader {
             return false;
         }
 
-        JAssets assets = downloadAssetsIndex(verInfo);
-        if(assets != null) scheduleAssetDownloads(assets);
-
+        // Two tasks for the same ID would write the same index file at the same time
+        if(verInfo.assetIndex != null && verInfo.assets != null && !assetIndexTasks.containsKey(verInfo.assets)) {
+            JMinecraftVersionList.Version assetVersion = verInfo;
+            FutureTask<Void> assetIndexTask = new FutureTask<>(() -> {
+                File assetIndexFile = downloadAssetsIndex(assetVersion);
+                // Each asset is scheduled as soon as it is read, so the downloads start while the index
+                // is still being read
+                AssetIndexReader.read(assetIndexFile, assetVersion.assetIndex.sha1, this::scheduleAssetDownload);
+                return null;
+            });
+            assetIndexTasks.put(verInfo.assets, assetIndexTask);
+            sExecutorService.execute(assetIndexTask);
+        }
 
         MinecraftClientInfo minecraftClientInfo = getClientInfo(verInfo);
         if(minecraftClientInfo != null) scheduleGameJarDownload(minecraftClientInfo, versionName);
@@ -221,27 +290,49 @@ public class MinecraftDownloader {
         if(Tools.isValidString(verInfo.inheritsFrom)) {
             JMinecraftVersionList.Version inheritedVersion = AsyncMinecraftDownloader.getListedVersion(verInfo.inheritsFrom);
             // Infinite inheritance !?! :noway:
-            return downloadAndProcessMetadata(activity, inheritedVersion, verInfo.inheritsFrom);
+            return downloadAndProcessMetadata(activity, inheritedVersion, verInfo.inheritsFrom, assetIndexTasks);
         }
         return true;
     }
 
-    private void growDownloadList(int addedElementCount) {
-        mScheduledDownloadTasks.ensureCapacity(mScheduledDownloadTasks.size() + addedElementCount);
-    }
-
+    /**
+     * Submit a download, unless the file is already up to date or was already scheduled. The
+     * verified file index is shared by all versions, so when switching versions only the libraries
+     * and assets that are new or were changed get downloaded, even if the asset index ID is different.
+     * Files that are listed more than once (for example libraries shared with an inherited
+     * version) are only scheduled once.
+     */
     private void scheduleDownload(File targetFile, int downloadClass, String url, String sha1,
                                   long size, boolean skipIfFailed) throws IOException {
+        // Assets are scheduled from a background thread while the rest of the metadata is processed
+        synchronized (this) {
+            if(!mPlannedFiles.add(targetFile)) return;
+        }
+        DownloaderTask task = new DownloaderTask(targetFile, downloadClass, url, sha1, size, skipIfFailed);
+        if(task.isUpToDate(VerifiedFileIndex.getInstance())) {
+            task.markExists();
+            return;
+        }
+        // Only the first file of every directory actually checks or creates the directory
         FileUtils.ensureParentDirectory(targetFile);
-        mDownloadFileCount++;
-        mScheduledDownloadTasks.add(
-                new DownloaderTask(targetFile, downloadClass, url, sha1, size, skipIfFailed)
-        );
+        // Files that are only missing from the index are usually intact, and the task just hashes them
+        long spaceNeeded = FileUtils.getSpaceNeeded(targetFile, size);
+        long totalSpaceNeeded;
+        synchronized (this) {
+            mDownloadFileCount++;
+            mDownloadSizeDelta += size;
+            mSpaceNeeded += spaceNeeded;
+            totalSpaceNeeded = mSpaceNeeded;
+        }
+        // Fail as soon as the planned files stop fitting, rather than when the storage fills up halfway
+        // through. The space is compared to the one measured at the start, since the files that are
+        // already being written are counted in the planned size too.
+        FileUtils.checkSpaceFits(mUsableSpace, totalSpaceNeeded);
+        mDownloadBatch.submit(url, size, task);
     }
 
     private void scheduleLibraryDownloads(DependentLibrary[] dependentLibraries) throws IOException {
         Tools.preProcessLibraries(dependentLibraries);
-        growDownloadList(dependentLibraries.length);
         for(DependentLibrary dependentLibrary : dependentLibraries) {
             // Don't download lwjgl, we have our own bundled in.
             if(dependentLibrary.name.startsWith("org.lwjgl")) continue;
@@ -277,30 +368,22 @@ public class MinecraftDownloader {
         }
     }
     
-    private void scheduleAssetDownloads(JAssets assets) throws IOException {
-        Map<String, JAssetInfo> assetObjects = assets.objects;
-        if(assetObjects == null) return;
-        Set<String> assetNames = assetObjects.keySet();
-        growDownloadList(assetNames.size());
-        for(String asset : assetNames) {
-            JAssetInfo assetInfo = assetObjects.get(asset);
-            if(assetInfo == null) continue;
-            File targetFile;
-            String hashedPath = assetInfo.hash.substring(0, 2) + File.separator + assetInfo.hash;
-            String basePath = assets.mapToResources ? Tools.OBSOLETE_RESOURCES_PATH : Tools.ASSETS_PATH;
-            if(assets.virtual || assets.mapToResources) {
-                targetFile = new File(basePath, asset);
-            } else {
-                targetFile = new File(basePath, "objects" + File.separator + hashedPath);
-            }
-            String sha1 = LauncherPreferences.PREF_CHECK_LIBRARY_SHA ? assetInfo.hash : null;
-            scheduleDownload(targetFile,
-                    DownloadMirror.DOWNLOAD_CLASS_ASSETS,
-                    MINECRAFT_RES + hashedPath,
-                    sha1,
-                    assetInfo.size,
-                    false);
+    private void scheduleAssetDownload(JAssets assets, String asset, JAssetInfo assetInfo) throws IOException {
+        File targetFile;
+        String hashedPath = assetInfo.hash.substring(0, 2) + File.separator + assetInfo.hash;
+        String basePath = assets.mapToResources ? Tools.OBSOLETE_RESOURCES_PATH : Tools.ASSETS_PATH;
+        if(assets.virtual || assets.mapToResources) {
+            targetFile = new File(basePath, asset);
+        } else {
+            targetFile = new File(basePath, "objects" + File.separator + hashedPath);
         }
+        String sha1 = LauncherPreferences.PREF_CHECK_LIBRARY_SHA ? assetInfo.hash : null;
+        scheduleDownload(targetFile,
+                DownloadMirror.DOWNLOAD_CLASS_ASSETS,
+                MINECRAFT_RES + hashedPath,
+                sha1,
+                assetInfo.size,
+                false);
     }
 
     private void scheduleLoggingAssetDownloadIfNeeded(JMinecraftVersionList.LoggingConfig loggingConfig) throws IOException {
@@ -322,7 +405,6 @@ public class MinecraftDownloader {
         File clientJar = createGameJarPath(versionName);
         String clientSha1 = LauncherPreferences.PREF_CHECK_LIBRARY_SHA ?
                 minecraftClientInfo.sha1 : null;
-        growDownloadList(1);
         scheduleDownload(clientJar,
                 DownloadMirror.DOWNLOAD_CLASS_LIBRARIES,
                 minecraftClientInfo.url,
@@ -367,6 +449,7 @@ public class MinecraftDownloader {
                 runCatching();
             }catch (Exception e) {
                 mDownloaderThreadException.set(e);
+                mProgress.finish();
             }
         }
 
@@ -381,8 +464,16 @@ public class MinecraftDownloader {
             }
         }
         
+        boolean isUpToDate(VerifiedFileIndex verifiedFileIndex) {
+            if(Tools.isValidString(mTargetSha1)) return verifiedFileIndex.isVerified(mTargetPath, mTargetSha1);
+            // Same as in runCatching(), files without a known hash are not downloaded again
+            return mTargetPath.exists();
+        }
+
         private void verifyFileSha1() throws Exception {
-            if(mTargetPath.isFile() && mTargetPath.canRead() && Tools.compareSHA1(mTargetPath, mTargetSha1)) {
+            if(mTargetPath.canRead() && DownloadUtils.verifyFileHash(mTargetPath, mTargetSha1)) {
+                finishWithoutDownloading();
+            } else if(isStoredInBlobStore() && BlobStore.getInstance().materialize(mTargetSha1, mTargetPath)) {
                 finishWithoutDownloading();
             } else {
                 // Rely on the download function to throw an IOE in case if the file is not
@@ -393,25 +484,46 @@ public class MinecraftDownloader {
         
         private void downloadFile() throws Exception {
             try {
-                DownloadUtils.ensureSha1(mTargetPath, mTargetSha1, () -> {
-                    DownloadMirror.downloadFileMirrored(mDownloadClass, mTargetUrl, mTargetPath,
-                            getLocalBuffer(), this);
-                    return null;
+                // The same file may be downloaded by another downloader at the same time
+                boolean downloaded = DownloadRegistry.getInstance().download(mTargetPath, mTargetSha1, () -> {
+                    // The file gets verified while it is being downloaded, and the existing file was checked
+                    // in verifyFileSha1(), so there is no need to use DownloadUtils.ensureSha1() here.
+                    DownloadUtils.downloadVerified(mTargetPath, () -> {
+                        DownloadMirror.downloadFileMirrored(mDownloadClass, mTargetUrl, mTargetPath,
+                                mTargetSha1, mDownloadSize, getLocalBuffer(), this);
+                        return null;
+                    });
+                    if(mTargetSha1 != null && isStoredInBlobStore())
+                        BlobStore.getInstance().add(mTargetPath, mTargetSha1);
                 });
+                if(!downloaded) mProgress.addBytes(mDownloadSize);
+                markExists();
             }catch (Exception e) {
                 if(!mSkipIfFailed) throw e;
             }
-            mDownloadFileCounter.incrementAndGet();
+            mProgress.addFiles(1);
+        }
+
+        private boolean isStoredInBlobStore() {
+            // Assets are stored by their hash already, and are shared by all versions
+            return mDownloadClass != DownloadMirror.DOWNLOAD_CLASS_ASSETS;
         }
 
         private void finishWithoutDownloading() {
-            mDownloadFileCounter.incrementAndGet();
-            mDownloadSizeCounter.addAndGet(mDownloadSize);
+            markExists();
+            mProgress.addBytes(mDownloadSize);
+            mProgress.addFiles(1);
+        }
+
+        void markExists() {
+            // Lets the launch skip checking the libraries on the classpath. There are too many
+            // assets to remember, and nothing checks them.
+            if(mDownloadClass != DownloadMirror.DOWNLOAD_CLASS_ASSETS) FileUtils.markExists(mTargetPath);
         }
 
         @Override
         public void updateProgress(int curr, int max) {
-           mDownloadSizeCounter.addAndGet(curr - mLastCurr);
+           mProgress.addBytes(curr - mLastCurr);
            mLastCurr = curr;
         }
     }
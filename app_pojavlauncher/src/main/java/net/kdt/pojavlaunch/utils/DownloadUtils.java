@@ -6,118 +6,416 @@ import androidx.annotation.Nullable;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
+import java.security.MessageDigest;
 import java.util.concurrent.Callable;
 
 import net.kdt.pojavlaunch.*;
+import net.kdt.pojavlaunch.downloader.BandwidthManager;
+import net.kdt.pojavlaunch.downloader.CachedMetadata;
+import net.kdt.pojavlaunch.downloader.CircuitBreaker;
+import net.kdt.pojavlaunch.downloader.CircuitOpenException;
+import net.kdt.pojavlaunch.downloader.DownloadScheduler;
+import net.kdt.pojavlaunch.downloader.DownloadTransport;
+import net.kdt.pojavlaunch.downloader.HashingOutputStream;
+import net.kdt.pojavlaunch.downloader.HttpStatusException;
+import net.kdt.pojavlaunch.downloader.HttpURLConnectionTransport;
+import net.kdt.pojavlaunch.downloader.InsufficientSpaceException;
+import net.kdt.pojavlaunch.downloader.LocalFileTransport;
+import net.kdt.pojavlaunch.downloader.NoFreeConnectionException;
+import net.kdt.pojavlaunch.downloader.OkHttpTransport;
+import net.kdt.pojavlaunch.downloader.PartialDownload;
+import net.kdt.pojavlaunch.downloader.RequestTiming;
+import net.kdt.pojavlaunch.downloader.RetryPolicy;
+import net.kdt.pojavlaunch.downloader.SegmentedDownload;
+import net.kdt.pojavlaunch.downloader.TransportRequest;
+import net.kdt.pojavlaunch.downloader.TransportResponse;
+import net.kdt.pojavlaunch.downloader.VerifiedFileIndex;
+import net.kdt.pojavlaunch.prefs.LauncherPreferences;
+
 import org.apache.commons.io.*;
 
 @SuppressWarnings("IOStreamConstructor")
 public class DownloadUtils {
     public static final String USER_AGENT = Tools.APP_NAME;
+    /** The default time for which metadata cached by downloadStringCached() is used without revalidation */
+    public static final long DEFAULT_CACHE_TTL = 86400000;
+    private static final DownloadTransport sDefaultTransport = new HttpURLConnectionTransport(USER_AGENT);
+    private static DownloadTransport sHttp2Transport;
+    private static volatile DownloadTransport sTransport;
+    // Used for the files that are too large for the buffer passed in by the caller
+    private static final ThreadLocal<byte[]> sLargeWriteBuffer = new ThreadLocal<>();
+
+    /**
+     * Get the transport shared by all of the launcher's downloads. Unless it was replaced with
+     * setTransport(), this is the transport selected in the launcher preferences.
+     * @return the current DownloadTransport
+     */
+    public static DownloadTransport getTransport() {
+        DownloadTransport transport = sTransport;
+        if(transport != null) return transport;
+        if(LauncherPreferences.PREF_USE_HTTP2_TRANSPORT) return getHttp2Transport();
+        return sDefaultTransport;
+    }
+
+    private static DownloadTransport getTransport(TransportRequest request) {
+        // Local directories used as download sources are read through the same code path
+        if(LocalFileTransport.isLocal(request)) return LocalFileTransport.getInstance();
+        return getTransport();
+    }
+
+    private static synchronized DownloadTransport getHttp2Transport() {
+        if(sHttp2Transport == null) sHttp2Transport = new OkHttpTransport(USER_AGENT);
+        return sHttp2Transport;
+    }
+
+    /**
+     * Replace the transport used for all downloads.
+     * @param transport the new DownloadTransport, or null to go back to the one from the preferences
+     */
+    public static void setTransport(@Nullable DownloadTransport transport) {
+        sTransport = transport;
+    }
 
     public static void download(String url, OutputStream os) throws IOException {
         download(new URL(url), os);
     }
 
     public static void download(URL url, OutputStream os) throws IOException {
-        InputStream is = null;
+        download(url, os, BandwidthManager.PRIORITY_INSTALL);
+    }
+
+    /**
+     * Download the contents of a URL into a stream. The server may send the body compressed,
+     * in which case it is decompressed while it is being written.
+     * @param url the URL
+     * @param os the stream to write into
+     * @param priority one of the BandwidthManager.PRIORITY_ constants
+     * @throws IOException if the download fails
+     */
+    public static void download(URL url, OutputStream os, int priority) throws IOException {
+        TransportRequest request = new TransportRequest(url).setPriority(priority).acceptCompressed();
+        boolean trial = false;
         try {
-            // System.out.println("Connecting: " + url.toString());
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestProperty("User-Agent", USER_AGENT);
-            conn.setConnectTimeout(10000);
-            conn.setDoInput(true);
-            conn.connect();
-            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Server returned HTTP " + conn.getResponseCode()
-                        + ": " + conn.getResponseMessage());
+            trial = CircuitBreaker.getInstance().checkAllowed(request.getHostKey());
+            try (TransportResponse response = getTransport(request).execute(request)) {
+                response.checkSuccess();
+                IOUtils.copy(response.getDecodedInputStream(), os);
             }
-            is = conn.getInputStream();
-            IOUtils.copy(is, os);
+            CircuitBreaker.getInstance().recordSuccess(request.getHostKey());
         } catch (IOException e) {
+            reportHostFailure(request, e);
             throw new IOException("Unable to download from " + url, e);
         } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+            if(trial) CircuitBreaker.getInstance().recordNeutral(request.getHostKey());
         }
     }
 
+    /**
+     * Let the scheduler and the circuit breaker know that a request failed, if the failure
+     * was caused by the host.
+     * @param request the failed request
+     * @param e the exception that the request failed with
+     */
+    public static void reportHostFailure(TransportRequest request, IOException e) {
+        if(e instanceof FileNotFoundException || e instanceof SHA1VerificationException
+                || e instanceof CircuitOpenException || e instanceof InsufficientSpaceException
+                || e instanceof NoFreeConnectionException) return;
+        if(e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) return;
+        if(e instanceof HttpStatusException && !((HttpStatusException) e).isRetryable()) return;
+        DownloadScheduler.getInstance().reportFailure(request.url.toString());
+        CircuitBreaker.getInstance().recordFailure(request.getHostKey());
+    }
+
     public static String downloadString(String url) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        download(url, bos);
+        download(new URL(url), bos, BandwidthManager.PRIORITY_METADATA);
         bos.close();
         return new String(bos.toByteArray(), StandardCharsets.UTF_8);
     }
 
     public static void downloadFile(String url, File out) throws IOException {
+        downloadFile(url, out, BandwidthManager.PRIORITY_INSTALL);
+    }
+
+    public static void downloadFile(String url, File out, int priority) throws IOException {
         FileUtils.ensureParentDirectory(out);
         try (FileOutputStream fileOutputStream = new FileOutputStream(out)) {
-            download(url, fileOutputStream);
+            download(new URL(url), fileOutputStream, priority);
         }
     }
 
     public static void downloadFileMonitored(String urlInput, File outputFile, @Nullable byte[] buffer,
                                              Tools.DownloaderFeedback monitor) throws IOException {
+        downloadFileMonitored(urlInput, outputFile, null, -1, buffer, monitor);
+    }
+
+    /**
+     * Download a file while reporting the progress. The file is downloaded into a ".part" file first,
+     * and if a previous attempt to download it was interrupted, the download continues where it left off.
+     * If a hash is specified, it is computed while the file is being written, and the destination file
+     * is only replaced if the downloaded file matches it.
+     * @param urlInput the URL of the file
+     * @param outputFile the destination file
+     * @param expectedHash the SHA-1 or SHA-512 hash of the file, can be null
+     * @param expectedSize the size of the file, or -1 if unknown. Only checked when a hash is specified.
+     * @param buffer the buffer to use for copying, can be null
+     * @param monitor the progress monitor
+     * @throws SHA1VerificationException if the downloaded file does not match the hash or the size
+     * @throws IOException if the download fails
+     */
+    public static void downloadFileMonitored(String urlInput, File outputFile, @Nullable String expectedHash,
+                                             long expectedSize, @Nullable byte[] buffer,
+                                             Tools.DownloaderFeedback monitor) throws IOException {
         FileUtils.ensureParentDirectory(outputFile);
+        if (buffer == null) buffer = new byte[65535];
+        if (expectedHash == null) expectedSize = -1;
+        MessageDigest digest = expectedHash != null ? HashingOutputStream.createDigest(expectedHash) : null;
 
-        HttpURLConnection conn = (HttpURLConnection) new URL(urlInput).openConnection();
-        InputStream readStr = conn.getInputStream();
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            int current;
-            int overall = 0;
-            int length = conn.getContentLength();
+        PartialDownload partialDownload = new PartialDownload(outputFile);
+        long resumeOffset = partialDownload.getResumeOffset();
+        if(expectedSize > 0 && resumeOffset >= expectedSize) {
+            partialDownload.discard();
+            resumeOffset = 0;
+        }
+        TransportRequest request = new TransportRequest(urlInput);
+        if(resumeOffset > 0) partialDownload.addResumeHeaders(request, resumeOffset);
 
-            if (buffer == null) buffer = new byte[65535];
+        boolean trial = CircuitBreaker.getInstance().checkAllowed(request.getHostKey());
+        try (TransportResponse response = getTransport(request).execute(request)) {
+            if(resumeOffset > 0 && response.getResponseCode() == 416) {
+                // The partial file is as long as the whole file, for example when the launcher was killed
+                // right before moving it into place. Start over on the next attempt.
+                partialDownload.discard();
+                throw new IOException("Partial download of " + outputFile.getName() + " can't be resumed");
+            }
+            response.checkSuccess();
+            if(resumeOffset > 0 && !PartialDownload.isResumedResponse(response, resumeOffset)) {
+                Log.i("DownloadUtils", "Server refused to resume "+outputFile.getName()+", starting over");
+                resumeOffset = 0;
+            }
+            long contentLength = response.getContentLength();
+            // Don't bother downloading a file that will fail verification anyway
+            if(expectedSize > 0 && contentLength != -1 && resumeOffset + contentLength != expectedSize) {
+                partialDownload.discard();
+                throw new SHA1VerificationException("Size mismatch for " + outputFile.getName() + ": expected "
+                        + expectedSize + ", server sent " + (resumeOffset + contentLength));
+            }
+            if(resumeOffset == 0 && SegmentedDownload.canSegment(response, getSegmentThreshold())) {
+                // The segments are written out of order, so the file can't be resumed or hashed on the fly
+                try {
+                    new SegmentedDownload(request, partialDownload.getPartFile(), response).run(response, buffer, monitor);
+                }catch (IOException e) {
+                    partialDownload.discard();
+                    throw e;
+                }
+                if(digest != null) {
+                    long hashStartTime = System.nanoTime();
+                    HashingOutputStream.updateDigest(digest, partialDownload.getPartFile(), -1, buffer);
+                    if(response.getTiming() != null) response.getTiming().addHashTime(System.nanoTime() - hashStartTime);
+                }
+            } else {
+                downloadStream(response, outputFile, partialDownload, resumeOffset, expectedSize, digest, buffer, monitor);
+            }
+            CircuitBreaker.getInstance().recordSuccess(request.getHostKey());
+        }catch (IOException e) {
+            reportHostFailure(request, e);
+            throw e;
+        }finally {
+            if(trial) CircuitBreaker.getInstance().recordNeutral(request.getHostKey());
+        }
+        if(digest != null) {
+            String actualHash = HashingOutputStream.toHex(digest.digest());
+            if(!actualHash.equalsIgnoreCase(expectedHash)) {
+                partialDownload.discard();
+                throw new SHA1VerificationException("Hash mismatch for " + outputFile.getName()
+                        + ": expected " + expectedHash + ", got " + actualHash);
+            }
+        }
+        partialDownload.commit();
+        if(expectedHash != null) VerifiedFileIndex.getInstance().markVerified(outputFile, expectedHash);
+    }
+
+    private static void downloadStream(TransportResponse response, File outputFile, PartialDownload partialDownload,
+                                       long resumeOffset, long expectedSize, @Nullable MessageDigest digest,
+                                       byte[] buffer, Tools.DownloaderFeedback monitor) throws IOException {
+        long contentLength = response.getContentLength();
+        boolean resumable = partialDownload.saveValidators(response);
+        if(digest != null && resumeOffset > 0)
+            HashingOutputStream.updateDigest(digest, partialDownload.getPartFile(), resumeOffset, buffer);
+
+        InputStream readStr = response.getInputStream();
+        long writeNanos = 0;
+        long totalLength = contentLength == -1 ? -1 : resumeOffset + contentLength;
+        buffer = getWriteBuffer(buffer, totalLength);
+        FileOutputStream fileOutputStream = new FileOutputStream(partialDownload.getPartFile(), resumeOffset > 0);
+        OutputStream fos = wrapDigest(fileOutputStream, digest);
+        boolean preallocated = false;
+        try {
+            // A resumable download continues at the length of the partial file, which must not be
+            // preallocated then: if the launcher gets killed, nothing would truncate it again
+            if(!resumable && contentLength > 0) {
+                FileUtils.preallocate(fileOutputStream.getFD(), contentLength);
+                preallocated = true;
+            }
+            int current;
+            int filled = 0;
+            long overall = resumeOffset;
+            int length = toProgress(totalLength);
 
-            while ((current = readStr.read(buffer)) != -1) {
+            while ((current = readStr.read(buffer, filled, buffer.length - filled)) != -1) {
                 overall += current;
-                fos.write(buffer, 0, current);
-                monitor.updateProgress(overall, length);
+                if(expectedSize > 0 && overall > expectedSize) {
+                    fos.close();
+                    partialDownload.discard();
+                    throw new SHA1VerificationException("File " + outputFile.getName() + " is larger than expected");
+                }
+                filled += current;
+                // Only write full buffers, so that large files are written in large chunks
+                if(filled == buffer.length) {
+                    long writeStartTime = System.nanoTime();
+                    fos.write(buffer, 0, filled);
+                    writeNanos += System.nanoTime() - writeStartTime;
+                    filled = 0;
+                }
+                monitor.updateProgress(toProgress(overall), length);
+            }
+            if(filled > 0) {
+                long writeStartTime = System.nanoTime();
+                fos.write(buffer, 0, filled);
+                writeNanos += System.nanoTime() - writeStartTime;
+            }
+        }finally {
+            long closeStartTime = System.nanoTime();
+            // Drop the unused preallocated space of a failed download
+            if(preallocated) truncateToPosition(fileOutputStream);
+            fos.close();
+            writeNanos += System.nanoTime() - closeStartTime;
+            RequestTiming timing = response.getTiming();
+            if(timing != null) {
+                // The hashing happens inside of the writes
+                long hashNanos = fos instanceof HashingOutputStream ? ((HashingOutputStream) fos).getDigestNanos() : 0;
+                timing.addDiskTime(writeNanos - hashNanos);
+                if(digest != null) timing.addHashTime(hashNanos);
             }
-            conn.disconnect();
         }
+    }
+
+    /**
+     * Convert a byte count for a Tools.DownloaderFeedback, which only takes ints. Counts above
+     * 2 GiB are clamped instead of overflowing into negative values, as the feedback implementations
+     * count the bytes themselves and can't be given a different unit.
+     * @param bytes the byte count, or -1 if unknown
+     * @return the progress value
+     */
+    public static int toProgress(long bytes) {
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    private static void truncateToPosition(FileOutputStream fileOutputStream) {
+        FileChannel fileChannel = fileOutputStream.getChannel();
+        // Already closed if the download was discarded
+        if(!fileChannel.isOpen()) return;
+        try {
+            fileChannel.truncate(fileChannel.position());
+        }catch (IOException e) {
+            Log.w("DownloadUtils", "Failed to truncate a preallocated file", e);
+        }
+    }
+
+    /**
+     * Get a buffer that suits the size of a file. Falls back to a larger per-thread buffer if the
+     * one provided by the caller is too small for the file.
+     * @param buffer the buffer provided by the caller
+     * @param fileLength the length of the file, or -1 if unknown
+     * @return the buffer to use
+     */
+    private static byte[] getWriteBuffer(byte[] buffer, long fileLength) {
+        int bufferSize = FileUtils.getWriteBufferSize(fileLength);
+        if(buffer.length >= bufferSize) return buffer;
+        byte[] largeBuffer = sLargeWriteBuffer.get();
+        if(largeBuffer == null || largeBuffer.length < bufferSize) {
+            largeBuffer = new byte[bufferSize];
+            sLargeWriteBuffer.set(largeBuffer);
+        }
+        return largeBuffer;
+    }
 
+    private static long getSegmentThreshold() {
+        return LauncherPreferences.PREF_SEGMENTED_DOWNLOAD_THRESHOLD * 1024L * 1024L;
+    }
+
+    private static OutputStream wrapDigest(OutputStream outputStream, @Nullable MessageDigest digest) {
+        if(digest == null) return outputStream;
+        return new HashingOutputStream(outputStream, digest);
     }
 
     public static <T> T downloadStringCached(String url, String cacheName, ParseCallback<T> parseCallback) throws IOException, ParseException{
-        File cacheDestination = new File(Tools.DIR_CACHE, "string_cache/"+cacheName);
-        if(cacheDestination.isFile() &&
-                cacheDestination.canRead() &&
-                System.currentTimeMillis() < (cacheDestination.lastModified() + 86400000)) {
+        return downloadStringCached(url, cacheName, DEFAULT_CACHE_TTL, parseCallback);
+    }
+
+    public static <T> T downloadStringCached(String url, String cacheName, long ttlMs, ParseCallback<T> parseCallback) throws IOException, ParseException{
+        return downloadStringCached(url, new File(Tools.DIR_CACHE, "string_cache/"+cacheName), ttlMs, parseCallback);
+    }
+
+    /**
+     * Download a string and parse it, keeping a copy of it on disk. Within its time-to-live, the cached
+     * copy is used without asking the server. After that, it is revalidated with a conditional request,
+     * so an unchanged resource is not downloaded again. If the server can't be reached, the cached copy
+     * is used regardless of its age.
+     * @param url the URL to download from
+     * @param cacheFile the file to keep the copy in
+     * @param ttlMs the time for which the cached copy is used without revalidating it
+     * @param parseCallback the function that parses the string. Strings that fail to parse are not cached.
+     * @return the parse result
+     * @throws IOException if the download fails and there is no usable cached copy
+     * @throws ParseException if the downloaded string fails to parse
+     */
+    public static <T> T downloadStringCached(String url, File cacheFile, long ttlMs, ParseCallback<T> parseCallback) throws IOException, ParseException{
+        CachedMetadata cachedMetadata = new CachedMetadata(cacheFile);
+        String cachedString = cachedMetadata.read();
+        T cachedResult = null;
+        if(cachedString != null) {
             try {
-                String cachedString = Tools.read(new FileInputStream(cacheDestination));
-                return parseCallback.process(cachedString);
-            }catch(IOException e) {
-                Log.i("DownloadUtils", "Failed to read the cached file", e);
+                cachedResult = parseCallback.process(cachedString);
             }catch (ParseException e) {
                 Log.i("DownloadUtils", "Failed to parse the cached file", e);
+                cachedString = null;
             }
         }
-        String urlContent = DownloadUtils.downloadString(url);
-        // if we download the file and fail parsing it, we will yeet outta there
-        // and not cache the unparseable sting. We will return this after trying to save the downloaded
-        // string into cache
-        T parseResult = parseCallback.process(urlContent);
-
-        boolean tryWriteCache;
-        if(cacheDestination.exists()) {
-            tryWriteCache = cacheDestination.canWrite();
-        } else {
-            tryWriteCache = FileUtils.ensureParentDirectorySilently(cacheDestination);
-        }
+        if(cachedString != null && cachedMetadata.isFresh(ttlMs)) return cachedResult;
 
-        if(tryWriteCache) try {
-            Tools.write(cacheDestination.getAbsolutePath(), urlContent);
-        }catch(IOException e) {
-            Log.i("DownloadUtils", "Failed to cache the string", e);
+        TransportRequest request = new TransportRequest(url).setPriority(BandwidthManager.PRIORITY_METADATA)
+                .acceptCompressed();
+        if(cachedString != null) cachedMetadata.addConditionalHeaders(request);
+        String urlContent;
+        boolean trial = false;
+        try {
+            trial = CircuitBreaker.getInstance().checkAllowed(request.getHostKey());
+            try (TransportResponse response = getTransport(request).execute(request)) {
+                if(cachedString != null && response.getResponseCode() == 304) {
+                    cachedMetadata.markRevalidated(response);
+                    CircuitBreaker.getInstance().recordSuccess(request.getHostKey());
+                    return cachedResult;
+                }
+                response.checkSuccess();
+                urlContent = IOUtils.toString(response.getDecodedInputStream(), StandardCharsets.UTF_8);
+                // if we download the file and fail parsing it, we will yeet outta there
+                // and not cache the unparseable sting.
+                T parseResult = parseCallback.process(urlContent);
+                cachedMetadata.store(urlContent, response);
+                CircuitBreaker.getInstance().recordSuccess(request.getHostKey());
+                return parseResult;
+            }
+        }catch (IOException e) {
+            reportHostFailure(request, e);
+            if(cachedString == null) throw new IOException("Unable to download from " + url, e);
+            Log.w("DownloadUtils", "Failed to revalidate "+cacheFile.getName()+", using the cached copy", e);
+            return cachedResult;
+        }finally {
+            if(trial) CircuitBreaker.getInstance().recordNeutral(request.getHostKey());
         }
-        return parseResult;
     }
 
     private static <T> T downloadFile(Callable<T> downloadFunction) throws IOException{
@@ -131,8 +429,52 @@ public class DownloadUtils {
         }
     }
 
-    private static boolean verifyFile(File file, String sha1) {
-        return file.exists() && Tools.compareSHA1(file, sha1);
+    /**
+     * Check a file against a SHA-1 or SHA-512 hash. Unlike Tools.compareSHA1(), read errors
+     * are treated as a mismatch. Files that were verified before and weren't changed since are not
+     * hashed again.
+     * @param file the file to check
+     * @param expectedHash the hash
+     * @return whether the file exists and matches the hash
+     */
+    public static boolean verifyFileHash(File file, String expectedHash) {
+        if(!file.isFile()) return false;
+        VerifiedFileIndex verifiedFileIndex = VerifiedFileIndex.getInstance();
+        if(verifiedFileIndex.isVerified(file, expectedHash)) return true;
+        MessageDigest digest = HashingOutputStream.createDigest(expectedHash);
+        try {
+            HashingOutputStream.updateDigest(digest, file, -1, new byte[65536]);
+        }catch (IOException e) {
+            Log.i("DownloadUtils", "Failed to read " + file.getName() + " for verification", e);
+            return false;
+        }
+        if(!HashingOutputStream.toHex(digest.digest()).equalsIgnoreCase(expectedHash)) return false;
+        verifiedFileIndex.markVerified(file, expectedHash);
+        return true;
+    }
+
+    /**
+     * Run a download function that verifies the file by itself (for example downloadFileMonitored()
+     * with an expected hash), retrying it with the default RetryPolicy if it fails. Unlike ensureSha1(),
+     * the file is neither checked before the download nor read back after it.
+     * @param outputFile the file that is being downloaded
+     * @param downloadFunction the download function
+     * @throws IOException if the download still fails after all attempts
+     */
+    public static void downloadVerified(File outputFile, Callable<?> downloadFunction) throws IOException {
+        RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+        int attempts = 0;
+        while(true) {
+            attempts++;
+            try {
+                downloadFile(downloadFunction);
+                return;
+            }catch (IOException e) {
+                if(!retryPolicy.canRetry(e, attempts)) throw e;
+                Log.w("DownloadUtils", "Download of "+outputFile.getName()+" failed, retrying", e);
+                retryPolicy.awaitRetry(e, attempts);
+            }
+        }
     }
 
     public static <T> T ensureSha1(File outputFile, @Nullable String sha1, Callable<T> downloadFunction) throws IOException {
@@ -143,15 +485,35 @@ public class DownloadUtils {
             else return downloadFile(downloadFunction);
         }
 
+        RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
         int attempts = 0;
-        boolean fileOkay = verifyFile(outputFile, sha1);
+        // Metadata like the version JSON and the asset index is checked on every launch, so it takes
+        // the same shortcut through the verified file index as the libraries and assets
+        boolean fileOkay = verifyFileHash(outputFile, sha1);
         T result = null;
-        while (attempts < 5 && !fileOkay){
+        IOException lastException = null;
+        while (!fileOkay){
+            if(attempts > 0) {
+                // A file that fails verification is retried like a failed download
+                if(!retryPolicy.canRetry(lastException, attempts)) {
+                    if(lastException != null) throw lastException;
+                    break;
+                }
+                Log.w("DownloadUtils", "Download of "+outputFile.getName()+" failed, retrying", lastException);
+                retryPolicy.awaitRetry(lastException, attempts);
+            }
             attempts++;
-            downloadFile(downloadFunction);
-            fileOkay = verifyFile(outputFile, sha1);
+            try {
+                downloadFile(downloadFunction);
+                lastException = null;
+            }catch (IOException e) {
+                // The partially downloaded data is kept, so the next attempt will continue from it
+                lastException = e;
+                continue;
+            }
+            fileOkay = verifyFileHash(outputFile, sha1);
         }
-        if(!fileOkay) throw new SHA1VerificationException("SHA1 verifcation failed after 5 download attempts");
+        if(!fileOkay) throw new SHA1VerificationException("SHA1 verifcation failed after "+attempts+" download attempts");
         return result;
     }
 
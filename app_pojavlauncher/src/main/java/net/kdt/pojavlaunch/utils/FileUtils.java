@@ -1,9 +1,28 @@
 package net.kdt.pojavlaunch.utils;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import net.kdt.pojavlaunch.downloader.InsufficientSpaceException;
+
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileUtils {
+    /** Larger writes don't make writing any faster */
+    public static final int MAX_WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int MIN_WRITE_BUFFER_SIZE = 8192;
+    // Paths that are known to exist, which saves a few stat() calls for every file of an install.
+    // Only our own deletions invalidate them, so they get cleared at the start of every install.
+    private static final Set<String> sKnownDirectories = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static final Set<String> sKnownFiles = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
     /**
      * Check if a file denoted by a String path exists.
      * @param filePath the path to check
@@ -13,6 +32,56 @@ public class FileUtils {
         return new File(filePath).exists();
     }
 
+    /**
+     * Same as exists(), but answers from the known paths if possible. Only meant for the files that
+     * were recorded with markExists(), like the libraries that were just installed.
+     * @param filePath the path to check
+     * @return whether it exists
+     */
+    public static boolean existsCached(String filePath) {
+        if(sKnownFiles.contains(filePath)) return true;
+        if(!exists(filePath)) return false;
+        sKnownFiles.add(filePath);
+        return true;
+    }
+
+    /**
+     * Record that a file exists, after it was written or verified.
+     * @param file the file
+     */
+    public static void markExists(File file) {
+        sKnownFiles.add(file.getAbsolutePath());
+    }
+
+    /**
+     * Forget everything that is known about a path and everything inside it. Must be called after
+     * deleting files or directories that may have been recorded.
+     * @param file the deleted file or directory
+     */
+    public static void invalidateKnownPaths(File file) {
+        String path = file.getAbsolutePath();
+        String childPrefix = path + File.separator;
+        invalidateKnownPaths(sKnownDirectories, path, childPrefix);
+        invalidateKnownPaths(sKnownFiles, path, childPrefix);
+    }
+
+    private static void invalidateKnownPaths(Set<String> knownPaths, String path, String childPrefix) {
+        Iterator<String> iterator = knownPaths.iterator();
+        while(iterator.hasNext()) {
+            String knownPath = iterator.next();
+            if(knownPath.equals(path) || knownPath.startsWith(childPrefix)) iterator.remove();
+        }
+    }
+
+    /**
+     * Forget all known paths, so that changes made by others (for example with a file manager)
+     * are noticed.
+     */
+    public static void clearKnownPaths() {
+        sKnownDirectories.clear();
+        sKnownFiles.clear();
+    }
+
     /**
      * Get the file name from a path/URL string.
      * @param pathOrUrl the path or the URL of the file
@@ -30,10 +99,14 @@ public class FileUtils {
      * @return if the check has succeeded
      */
     public static boolean ensureDirectorySilently(File targetFile) {
+        String path = targetFile.getAbsolutePath();
+        if(sKnownDirectories.contains(path)) return true;
         if(targetFile.isFile()) return false;
-        if(targetFile.exists()) return targetFile.canWrite();
-        else return targetFile.mkdirs();
-
+        boolean usable;
+        if(targetFile.exists()) usable = targetFile.canWrite();
+        else usable = targetFile.mkdirs() || targetFile.isDirectory(); // Another thread may have created it
+        if(usable) sKnownDirectories.add(path);
+        return usable;
     }
 
     /**
@@ -53,10 +126,15 @@ public class FileUtils {
      * @throws IOException when the checks fail
      */
     public static void ensureDirectory(File targetFile) throws IOException{
+        String path = targetFile.getAbsolutePath();
+        if(sKnownDirectories.contains(path)) return;
         if(targetFile.isFile()) throw new IOException("Target directory is a file");
         if(targetFile.exists()) {
             if(!targetFile.canWrite()) throw new IOException("Target directory is not writable");
-        }else if(!targetFile.mkdirs()) throw new IOException("Unable to create target directory");
+        }else if(!targetFile.mkdirs() && !targetFile.isDirectory()) { // Another thread may have created it
+            throw new IOException("Unable to create target directory");
+        }
+        sKnownDirectories.add(path);
     }
 
     /**
@@ -69,4 +147,85 @@ public class FileUtils {
         if(parentFile == null) throw new IOException("targetFile does not have a parent");
         ensureDirectory(parentFile);
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the size of a write buffer for a file: small files don't need large buffers, and large
+     * files get written in a few large chunks instead of many small ones.
+     * @param fileLength the length of the file, or -1 if unknown
+     * @return the buffer size, a power of two between 8 KB and 1 MB
+     */
+    public static int getWriteBufferSize(long fileLength) {
+        if(fileLength < 0) return 65536;
+        int bufferSize = MIN_WRITE_BUFFER_SIZE;
+        // Aim for about 16 writes per file
+        while(bufferSize < MAX_WRITE_BUFFER_SIZE && bufferSize * 16L < fileLength) bufferSize <<= 1;
+        return bufferSize;
+    }
+
+    /**
+     * Reserve the space for a file of a known length before writing it. This lets the filesystem
+     * keep the file in one piece, and reports a full storage before anything gets written.
+     * The file becomes as long as the reserved space, so if less gets written into it, it must be
+     * truncated afterwards.
+     * @param fd the descriptor of the file, opened for writing
+     * @param length the final length of the file
+     * @throws InsufficientSpaceException if the file does not fit into the free space
+     */
+    public static void preallocate(FileDescriptor fd, long length) throws InsufficientSpaceException {
+        if(length <= 0) return;
+        try {
+            Os.posix_fallocate(fd, 0, length);
+        }catch (ErrnoException e) {
+            if(e.errno == OsConstants.ENOSPC)
+                throw new InsufficientSpaceException("Not enough free space for a file of " + length + " bytes");
+            // Not every filesystem supports this (FUSE-backed storage, for example), in which case
+            // the file simply grows while it is written
+        }
+    }
+
+    /**
+     * Check that there is enough free space for the files that are about to be written.
+     * @param directory the directory the files will be written into, doesn't have to exist yet
+     * @param requiredBytes the total size of the files
+     * @throws InsufficientSpaceException if the files won't fit
+     */
+    public static void checkFreeSpace(File directory, long requiredBytes) throws InsufficientSpaceException {
+        if(requiredBytes <= 0) return;
+        checkSpaceFits(getUsableSpace(directory), requiredBytes);
+    }
+
+    /**
+     * Get the amount of space that replacing a file takes up. Files that are already on the disk
+     * with the right size only need to be checked, not written.
+     * @param file the file that will be written
+     * @param size the size of the new file
+     * @return the amount of bytes the file will grow by
+     */
+    public static long getSpaceNeeded(File file, long size) {
+        // length() is 0 for missing files
+        return Math.max(0, size - file.length());
+    }
+
+    /**
+     * @param directory the directory to check, doesn't have to exist yet
+     * @return the free space available to the app in the directory, or 0 if it could not be determined
+     */
+    public static long getUsableSpace(File directory) {
+        while(directory != null && !directory.exists()) directory = directory.getParentFile();
+        if(directory == null) return 0;
+        return directory.getUsableSpace();
+    }
+
+    /**
+     * Same as {@link #checkFreeSpace(File, long)}, for free space that was determined earlier.
+     * @param usableSpace the free space returned by {@link #getUsableSpace(File)}
+     * @param requiredBytes the total size of the files
+     * @throws InsufficientSpaceException if the files won't fit
+     */
+    public static void checkSpaceFits(long usableSpace, long requiredBytes) throws InsufficientSpaceException {
+        // 0 also means that the free space could not be determined
+        if(usableSpace == 0 || usableSpace >= requiredBytes) return;
+        throw new InsufficientSpaceException("Not enough free space: " + requiredBytes + " bytes are needed, but only "
+                + usableSpace + " bytes are available");
+    }
+}
@@ -1,17 +1,38 @@
 package net.kdt.pojavlaunch.utils;
 
-import org.apache.commons.io.IOUtils;
+import static net.kdt.pojavlaunch.PojavApplication.sExecutorService;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.kdt.pojavlaunch.Tools;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class ZipUtils {
+    // Threads that extract entries at the same time, including the calling one
+    private static final int EXTRACT_THREADS = 4;
+    private static final int BUFFER_SIZE = 65536;
+
     /**
      * Gets an InputStream for a given ZIP entry, throwing an IOException if the ZIP entry does not
      * exist.
@@ -37,18 +58,188 @@ public class ZipUtils {
      * @throws IOException if it was not possible to create a directory or file extraction failed
      */
     public static void zipExtract(ZipFile zipFile, String dirName, File destination) throws IOException {
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-
-        int dirNameLen = dirName.length();
-        while(zipEntries.hasMoreElements()) {
-            ZipEntry zipEntry = zipEntries.nextElement();
-            String entryName = zipEntry.getName();
-            if(!entryName.startsWith(dirName) || zipEntry.isDirectory()) continue;
-            File zipDestination = new File(destination, entryName.substring(dirNameLen));
+        zipExtract(zipFile, dirName, destination, null);
+    }
+
+    /**
+     * Same as {@link #zipExtract(ZipFile, String, File)}, but reports the progress.
+     * Several entries are extracted at the same time. Files that already have the size and the CRC32
+     * of their entry are left alone, which makes reinstalling or updating a modpack only write the
+     * files that changed.
+     * @param zipFile The ZipFile to extract files from
+     * @param dirName The directory to extract the files from
+     * @param destination The destination directory to extract the files into
+     * @param feedback receives the number of processed files and the total number of files, may be null
+     * @throws IOException if it was not possible to create a directory or file extraction failed
+     */
+    public static void zipExtract(ZipFile zipFile, String dirName, File destination,
+                                  @Nullable Tools.DownloaderFeedback feedback) throws IOException {
+        zipExtract(zipFile, new String[]{dirName}, destination, feedback);
+    }
+
+    /**
+     * Same as {@link #zipExtract(ZipFile, String, File, Tools.DownloaderFeedback)}, but extracts
+     * several directories into the same destination at once, with one progress for all of them.
+     * If several directories contain the same file, the one from the last directory is kept.
+     * @param zipFile The ZipFile to extract files from
+     * @param dirNames The directories to extract the files from, in the order they are applied
+     * @param destination The destination directory to extract the files into
+     * @param feedback receives the number of processed files and the total number of files, may be null
+     * @throws IOException if it was not possible to create a directory or file extraction failed
+     */
+    public static void zipExtract(ZipFile zipFile, String[] dirNames, File destination,
+                                  @Nullable Tools.DownloaderFeedback feedback) throws IOException {
+        // Keyed by the path in the destination, so that later directories replace the files of earlier ones
+        Map<String, ZipEntry> entryMap = new LinkedHashMap<>();
+        for(String dirName : dirNames) {
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while(zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                if(!zipEntry.getName().startsWith(dirName) || zipEntry.isDirectory()) continue;
+                entryMap.put(zipEntry.getName().substring(dirName.length()), zipEntry);
+            }
+        }
+        if(entryMap.isEmpty()) return;
+        List<Map.Entry<String, ZipEntry>> entries = new ArrayList<>(entryMap.entrySet());
+
+        ParallelExtraction extraction = new ParallelExtraction(zipFile, entries, destination, feedback);
+        int helperCount = Math.min(EXTRACT_THREADS, entries.size()) - 1;
+        List<FutureTask<Void>> helpers = new ArrayList<>(helperCount);
+        boolean extracted = false;
+        try {
+            for(int i = 0; i < helperCount; i++) {
+                FutureTask<Void> helper = new FutureTask<>(() -> {
+                    extraction.extractEntries();
+                    return null;
+                });
+                sExecutorService.execute(helper);
+                helpers.add(helper);
+            }
+            extraction.extractEntries();
+            for(FutureTask<Void> helper : helpers) awaitHelper(helper);
+            extracted = true;
+        }finally {
+            if(!extracted) {
+                // The caller closes the ZipFile after this, so the helpers must be done with it
+                extraction.stop();
+                for(FutureTask<Void> helper : helpers) awaitHelperQuietly(helper);
+            }
+        }
+    }
+
+    private static void awaitHelper(FutureTask<Void> helper) throws IOException {
+        // Nothing is left to extract at this point, so a helper that hasn't started yet just returns
+        helper.run();
+        try {
+            helper.get();
+        }catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while extracting");
+        }catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static void awaitHelperQuietly(FutureTask<Void> helper) {
+        helper.run();
+        try {
+            helper.get();
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }catch (ExecutionException | CancellationException ignored) {
+            // The extraction has already failed
+        }
+    }
+
+    /**
+     * @param file the file to check
+     * @param entry the entry that the file was extracted from
+     * @param buffer the buffer to read the file with
+     * @return true if the file has the same size and CRC32 as the entry
+     */
+    private static boolean isUnchanged(File file, ZipEntry entry, byte[] buffer) throws IOException {
+        long entryCrc = entry.getCrc();
+        if(entryCrc == -1 || entry.getSize() == -1 || file.length() != entry.getSize() || !file.isFile()) return false;
+        CRC32 crc32 = new CRC32();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int length;
+            while((length = inputStream.read(buffer)) != -1) crc32.update(buffer, 0, length);
+        }
+        return crc32.getValue() == entryCrc;
+    }
+
+    /**
+     * Hands out the entries of an extraction to the threads that work on it.
+     */
+    private static class ParallelExtraction {
+        private final ZipFile mZipFile;
+        private final List<Map.Entry<String, ZipEntry>> mEntries;
+        private final File mDestination;
+        @Nullable private final Tools.DownloaderFeedback mFeedback;
+        private final AtomicInteger mNextEntry = new AtomicInteger();
+        private final AtomicInteger mProcessedEntries = new AtomicInteger();
+        private final AtomicBoolean mStopped = new AtomicBoolean();
+        private int mLastReportedPercent = -1;
+
+        ParallelExtraction(ZipFile zipFile, List<Map.Entry<String, ZipEntry>> entries, File destination,
+                           @Nullable Tools.DownloaderFeedback feedback) {
+            this.mZipFile = zipFile;
+            this.mEntries = entries;
+            this.mDestination = destination;
+            this.mFeedback = feedback;
+        }
+
+        void stop() {
+            mStopped.set(true);
+        }
+
+        void extractEntries() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                int index;
+                while(!mStopped.get() && (index = mNextEntry.getAndIncrement()) < mEntries.size()) {
+                    Map.Entry<String, ZipEntry> entry = mEntries.get(index);
+                    ZipEntry zipEntry = entry.getValue();
+                    File zipDestination = new File(mDestination, entry.getKey());
+                    if(!isUnchanged(zipDestination, zipEntry, buffer)) extractEntry(zipEntry, zipDestination, buffer);
+                    reportProgress(mProcessedEntries.incrementAndGet());
+                }
+            }catch (IOException | RuntimeException e) {
+                // No point in extracting the rest if the extraction fails anyway
+                mStopped.set(true);
+                throw e;
+            }
+        }
+
+        private void extractEntry(ZipEntry zipEntry, File zipDestination, byte[] buffer) throws IOException {
             FileUtils.ensureParentDirectory(zipDestination);
-            try (InputStream inputStream = zipFile.getInputStream(zipEntry);
-                 OutputStream outputStream = new FileOutputStream(zipDestination)) {
-                IOUtils.copy(inputStream, outputStream);
+            try (InputStream inputStream = mZipFile.getInputStream(zipEntry);
+                 FileOutputStream outputStream = new FileOutputStream(zipDestination)) {
+                FileUtils.preallocate(outputStream.getFD(), zipEntry.getSize());
+                int length;
+                while((length = inputStream.read(buffer)) != -1) outputStream.write(buffer, 0, length);
+            }catch (IOException e) {
+                // A preallocated file already has its final length, so it must not stay around half-written
+                if(!zipDestination.delete()) Log.w("ZipUtils", "Failed to delete " + zipDestination);
+                FileUtils.invalidateKnownPaths(zipDestination);
+                throw e;
+            }
+            FileUtils.markExists(zipDestination);
+        }
+
+        private void reportProgress(int processedEntries) {
+            if(mFeedback == null) return;
+            int totalEntries = mEntries.size();
+            int percent = (int) ((long) processedEntries * 100 / totalEntries);
+            // Thousands of small files would flood the progress bar with updates
+            synchronized (this) {
+                // The threads can get here out of order, so the progress must not go backwards
+                if(percent <= mLastReportedPercent) return;
+                mLastReportedPercent = percent;
+                mFeedback.updateProgress(processedEntries, totalEntries);
             }
         }
     }
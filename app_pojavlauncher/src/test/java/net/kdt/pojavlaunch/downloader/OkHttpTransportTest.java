@@ -0,0 +1,168 @@
+package net.kdt.pojavlaunch.downloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.internal.http2.ErrorCode;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+public class OkHttpTransportTest {
+    private MockWebServer mServer;
+    private OkHttpTransport mTransport;
+
+    @Before
+    public void setUp() {
+        mServer = new MockWebServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    /** Serve HTTP/2 over TLS, which is the only way OkHttp negotiates it */
+    private void startHttp2Server() throws IOException {
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName(InetAddress.getByName("localhost").getCanonicalHostName())
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+        mServer.useHttps(serverCertificates.sslSocketFactory(), false);
+        mServer.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        mServer.start();
+        mTransport = new OkHttpTransport("test", new OkHttpClient.Builder()
+                .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager()));
+    }
+
+    private TransportRequest request(String path) {
+        return new TransportRequest(mServer.url(path).url());
+    }
+
+    private String readBody(TransportRequest request) throws IOException {
+        try (TransportResponse response = mTransport.execute(request)) {
+            response.checkSuccess();
+            InputStream inputStream = response.getInputStream();
+            byte[] buffer = new byte[256];
+            StringBuilder body = new StringBuilder();
+            int length;
+            while((length = inputStream.read(buffer)) != -1) body.append(new String(buffer, 0, length, StandardCharsets.UTF_8));
+            return body.toString();
+        }
+    }
+
+    @Test
+    public void negotiatesHttp2() throws IOException {
+        startHttp2Server();
+        mServer.enqueue(new MockResponse().setBody("hello"));
+        TransportRequest request = request("/file");
+
+        assertEquals("hello", readBody(request));
+        assertTrue(mTransport.isHttp2(request.getHostKey()));
+        assertFalse(mTransport.isHttp1Only(request.getHostKey()));
+    }
+
+    @Test
+    public void streamResetMovesHostToHttp1() throws IOException {
+        startHttp2Server();
+        // Every HTTP/2 stream after the first one is reset. MockWebServer decides that before the
+        // request is read, through peek().
+        mServer.setDispatcher(new Dispatcher() {
+            private volatile boolean mFirstServed;
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // The reset streams get here too, without a path
+                if("/first".equals(request.getPath())) {
+                    mFirstServed = true;
+                    return new MockResponse().setBody("first");
+                }
+                return new MockResponse().setBody("retried");
+            }
+
+            @Override
+            public MockResponse peek() {
+                if(!mFirstServed) return super.peek();
+                return new MockResponse().setSocketPolicy(SocketPolicy.RESET_STREAM_AT_START)
+                        .setHttp2ErrorCode(ErrorCode.PROTOCOL_ERROR.httpCode);
+            }
+        });
+        TransportRequest request = request("/first");
+
+        assertEquals("first", readBody(request));
+        try {
+            readBody(request("/file"));
+            fail("The reset request should have failed");
+        }catch (IOException e) {
+            // Expected, repeating the request is up to the retry policy
+        }
+        assertTrue(mTransport.isHttp1Only(request.getHostKey()));
+        assertEquals("retried", readBody(request("/file")));
+        assertTrue(mTransport.isHttp1Only(request.getHostKey()));
+        assertFalse(mTransport.isHttp2(request.getHostKey()));
+    }
+
+    @Test
+    public void droppedConnectionKeepsHttp2() throws IOException {
+        startHttp2Server();
+        mServer.enqueue(new MockResponse().setBody("first"));
+        TransportRequest request = request("/file");
+        assertEquals("first", readBody(request));
+
+        mServer.shutdown();
+        try {
+            readBody(request);
+            fail("The request should have failed");
+        }catch (IOException e) {
+            // Expected, the server is gone
+        }
+        assertFalse(mTransport.isHttp1Only(request.getHostKey()));
+    }
+
+    @Test
+    public void http1PermitsAreReleased() throws IOException {
+        mServer.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+        mServer.start();
+        mTransport = new OkHttpTransport("test");
+        int requestCount = HttpURLConnectionTransport.MAX_CONNECTIONS_PER_HOST * 3;
+        for(int i = 0; i < requestCount; i++) {
+            mServer.enqueue(i % 2 == 0 ? new MockResponse().setBody("ok") : new MockResponse().setResponseCode(500));
+        }
+
+        for(int i = 0; i < requestCount; i++) {
+            // A leaked permit would make one of the later requests give up on getting a connection
+            TransportRequest request = request("/file").setConnectionWait(1000);
+            try {
+                readBody(request);
+                assertEquals(0, i % 2);
+            }catch (HttpStatusException e) {
+                assertEquals(1, i % 2);
+            }
+        }
+        assertFalse(mTransport.isHttp2(request("/file").getHostKey()));
+    }
+}
@@ -0,0 +1,81 @@
+package net.kdt.pojavlaunch.downloader;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class VerifiedFileIndexTest {
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static VerifiedFileIndex.Entry entry(int seed) {
+        byte[] hash = new byte[20];
+        for(int i = 0; i < hash.length; i++) hash[i] = (byte) (seed + i);
+        return new VerifiedFileIndex.Entry(1000 + seed, 5000 + seed, seed, hash);
+    }
+
+    private static void appendAll(VerifiedFileIndex index, String... paths) throws IOException {
+        for(int i = 0; i < paths.length; i++) index.appendRecord(paths[i], entry(i));
+        index.flush();
+    }
+
+    @Test
+    public void recordsSurviveReload() throws IOException {
+        File indexFile = new File(mTempFolder.getRoot(), "index.idx");
+        appendAll(new VerifiedFileIndex(indexFile), "/a", "/b");
+
+        VerifiedFileIndex reloaded = new VerifiedFileIndex(indexFile);
+        assertTrue(reloaded.hasEntry("/a"));
+        assertTrue(reloaded.hasEntry("/b"));
+    }
+
+    @Test
+    public void tornTailIsDroppedAndLaterRecordsAreReadable() throws IOException {
+        File indexFile = new File(mTempFolder.getRoot(), "index.idx");
+        appendAll(new VerifiedFileIndex(indexFile), "/a", "/b");
+        // A crash in the middle of a write: the length of a record, but only a part of its body
+        try (FileOutputStream outputStream = new FileOutputStream(indexFile, true)) {
+            outputStream.write(new byte[]{0, 0, 0, 64, 1, 2, 3});
+        }
+
+        VerifiedFileIndex recovered = new VerifiedFileIndex(indexFile);
+        assertTrue(recovered.hasEntry("/a"));
+        assertTrue(recovered.hasEntry("/b"));
+        appendAll(recovered, "/c");
+
+        VerifiedFileIndex reloaded = new VerifiedFileIndex(indexFile);
+        assertTrue(reloaded.hasEntry("/a"));
+        assertTrue(reloaded.hasEntry("/b"));
+        assertTrue(reloaded.hasEntry("/c"));
+    }
+
+    @Test
+    public void corruptedRecordIsDroppedAndLaterRecordsAreReadable() throws IOException {
+        File indexFile = new File(mTempFolder.getRoot(), "index.idx");
+        appendAll(new VerifiedFileIndex(indexFile), "/a", "/b");
+        // Flip a byte in the last record, which makes its checksum fail
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.seek(file.length() - 8);
+            int value = file.read();
+            file.seek(file.length() - 8);
+            file.write(value ^ 0xff);
+        }
+
+        VerifiedFileIndex recovered = new VerifiedFileIndex(indexFile);
+        assertTrue(recovered.hasEntry("/a"));
+        assertFalse(recovered.hasEntry("/b"));
+        appendAll(recovered, "/c");
+
+        VerifiedFileIndex reloaded = new VerifiedFileIndex(indexFile);
+        assertTrue(reloaded.hasEntry("/a"));
+        assertTrue(reloaded.hasEntry("/c"));
+    }
+}